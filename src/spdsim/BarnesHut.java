@@ -0,0 +1,283 @@
+package spdsim;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class BarnesHut extends FieldSolver {
+
+	private static final int LEAF = 8, MAX_DEPTH = 32;
+
+	private Particle[] pts;
+	private double[] px, py, pz, q;
+	private int[] order, scratch;
+	private int n, dims;
+
+	private double[] cx, cy, cz, nq, qx, qy, qz, size, offset;
+	private int[] first, from, to;
+	private int nodes, depth;
+
+	private double theta, eps2;
+	private boolean valid;
+	private final ThreadLocal<int[]> stacks = new ThreadLocal<int[]>();
+
+	public BarnesHut() {
+
+		pts = new Particle[0];
+		px = new double[0];
+		py = new double[0];
+		pz = new double[0];
+		q = new double[0];
+		order = new int[0];
+		scratch = new int[0];
+		ensureNodes(64);
+	}
+
+	private BarnesHut ensureParticles(int cap) {
+
+		if (cap <= px.length) return this;
+		int nCap = Math.max(cap, 2 * px.length);
+		pts = Arrays.copyOf(pts, nCap);
+		px = Arrays.copyOf(px, nCap);
+		py = Arrays.copyOf(py, nCap);
+		pz = Arrays.copyOf(pz, nCap);
+		q = Arrays.copyOf(q, nCap);
+		order = Arrays.copyOf(order, nCap);
+		scratch = Arrays.copyOf(scratch, nCap);
+		return this;
+	}
+	private BarnesHut ensureNodes(int cap) {
+
+		if (cx != null && cap <= cx.length) return this;
+		int nCap = Math.max(cap, cx == null ? 0 : 2 * cx.length);
+		cx = cx == null ? new double[nCap] : Arrays.copyOf(cx, nCap);
+		cy = cy == null ? new double[nCap] : Arrays.copyOf(cy, nCap);
+		cz = cz == null ? new double[nCap] : Arrays.copyOf(cz, nCap);
+		nq = nq == null ? new double[nCap] : Arrays.copyOf(nq, nCap);
+		qx = qx == null ? new double[nCap] : Arrays.copyOf(qx, nCap);
+		qy = qy == null ? new double[nCap] : Arrays.copyOf(qy, nCap);
+		qz = qz == null ? new double[nCap] : Arrays.copyOf(qz, nCap);
+		size = size == null ? new double[nCap] : Arrays.copyOf(size, nCap);
+		offset = offset == null ? new double[nCap] : Arrays.copyOf(offset, nCap);
+		first = first == null ? new int[nCap] : Arrays.copyOf(first, nCap);
+		from = from == null ? new int[nCap] : Arrays.copyOf(from, nCap);
+		to = to == null ? new int[nCap] : Arrays.copyOf(to, nCap);
+		return this;
+	}
+
+	@Override
+	public BarnesHut build(InverseSquare inter) {return build(inter, inter.getParticles());}
+	public BarnesHut build(InverseSquare inter, List<Particle> list) {
+
+		n = list.size();
+		valid = false;
+		if (n == 0) return this;
+
+		ensureParticles(n);
+		dims = list.get(0).getDim() == Environment.DIMENSION.TWO ? 2 : 3;
+		theta = inter.getOpeningAngle();
+		eps2 = inter.getSoftening() * inter.getSoftening();
+
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+		double maxX = - Double.MAX_VALUE, maxY = - Double.MAX_VALUE, maxZ = - Double.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			Particle p = list.get(i);
+			if (!p.isActive()) return this;
+			pts[i] = p;
+			if (p.isDoublePrecision()) {
+				px[i] = p.getPosD().x;
+				py[i] = p.getPosD().y;
+				pz[i] = dims == 3 ? p.getPosD().z : 0;
+			} else {
+				px[i] = p.getPos().x;
+				py[i] = p.getPos().y;
+				pz[i] = dims == 3 ? p.getPos().z : 0;
+			}
+			q[i] = inter.getSource(p);
+			order[i] = i;
+			minX = Math.min(minX, px[i]); maxX = Math.max(maxX, px[i]);
+			minY = Math.min(minY, py[i]); maxY = Math.max(maxY, py[i]);
+			minZ = Math.min(minZ, pz[i]); maxZ = Math.max(maxZ, pz[i]);
+		}
+
+		double half = Math.max(maxX - minX, maxY - minY);
+		if (dims == 3) half = Math.max(half, maxZ - minZ);
+		half = half / 2 * (1 + 1e-9) + Double.MIN_NORMAL;
+
+		nodes = 1;
+		depth = 0;
+		build(0, 0, n, (minX + maxX) / 2, (minY + maxY) / 2, (minZ + maxZ) / 2, half, 0);
+		valid = true;
+		return this;
+	}
+
+	private void build(int node, int lo, int hi, double ox, double oy, double oz, double half, int level) {
+
+		from[node] = lo;
+		to[node] = hi;
+		size[node] = 2 * half;
+		depth = Math.max(depth, level);
+
+		if (hi - lo <= LEAF || level >= MAX_DEPTH) {
+			first[node] = - 1;
+		} else {
+			int nChildren = 1 << dims;
+			int[] count = new int[nChildren + 1];
+			for (int k = lo; k < hi; k++) count[octant(order[k], ox, oy, oz) + 1]++;
+			for (int c = 0; c < nChildren; c++) count[c + 1] += count[c];
+			int[] start = Arrays.copyOf(count, nChildren);
+			for (int k = lo; k < hi; k++) {
+				int i = order[k];
+				scratch[lo + start[octant(i, ox, oy, oz)]++] = i;
+			}
+			System.arraycopy(scratch, lo, order, lo, hi - lo);
+
+			ensureNodes(nodes + nChildren);
+			int child = nodes;
+			first[node] = child;
+			nodes += nChildren;
+			double h = half / 2;
+			for (int c = 0; c < nChildren; c++)
+				build(child + c, lo + count[c], lo + count[c + 1],
+					ox + ((c & 1) != 0 ? h : - h), oy + ((c & 2) != 0 ? h : - h), oz + ((c & 4) != 0 ? h : - h), h, level + 1);
+		}
+
+		double sum = 0, w = 0, x = 0, y = 0, z = 0;
+		for (int k = lo; k < hi; k++) {
+			int i = order[k];
+			double a = Math.abs(q[i]);
+			sum += q[i];
+			w += a;
+			x += a * px[i];
+			y += a * py[i];
+			z += a * pz[i];
+		}
+		nq[node] = sum;
+		if (w > 0) {
+			cx[node] = x / w;
+			cy[node] = y / w;
+			cz[node] = z / w;
+		} else {
+			cx[node] = ox;
+			cy[node] = oy;
+			cz[node] = oz;
+		}
+		double mx = 0, my = 0, mz = 0;
+		for (int k = lo; k < hi; k++) {
+			int i = order[k];
+			mx += q[i] * (px[i] - cx[node]);
+			my += q[i] * (py[i] - cy[node]);
+			mz += q[i] * (pz[i] - cz[node]);
+		}
+		qx[node] = mx;
+		qy[node] = my;
+		qz[node] = mz;
+		double ex = cx[node] - ox, ey = cy[node] - oy, ez = cz[node] - oz;
+		offset[node] = Math.sqrt(ex * ex + ey * ey + ez * ez);
+	}
+	private int octant(int i, double ox, double oy, double oz) {
+		return (px[i] >= ox ? 1 : 0) | (py[i] >= oy ? 2 : 0) | (dims == 3 && pz[i] >= oz ? 4 : 0);
+	}
+
+	@Override
+	public double[] acceleration(Particle p, double[] out) {
+
+		double x, y, z;
+		if (p.isDoublePrecision()) {
+			x = p.getPosD().x; y = p.getPosD().y; z = dims == 3 ? p.getPosD().z : 0;
+		} else {
+			x = p.getPos().x; y = p.getPos().y; z = dims == 3 ? p.getPos().z : 0;
+		}
+
+		double ax = 0, ay = 0, az = 0;
+		int nChildren = 1 << dims, stack[] = stack(), top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			if (from[node] == to[node]) continue;
+
+			double dx = cx[node] - x, dy = cy[node] - y, dz = cz[node] - z;
+			double d2 = dx * dx + dy * dy + dz * dz;
+			if (first[node] < 0) {
+				for (int k = from[node]; k < to[node]; k++) {
+					int i = order[k];
+					if (pts[i] == p) continue;
+					double ex = px[i] - x, ey = py[i] - y, ez = pz[i] - z;
+					double r2 = ex * ex + ey * ey + ez * ez + eps2;
+					double f = q[i] / (r2 * Math.sqrt(r2));
+					ax += f * ex;
+					ay += f * ey;
+					az += f * ez;
+				}
+				continue;
+			}
+
+			double open = size[node] / theta + offset[node];
+			if (theta > 0 && d2 > open * open) {
+				double r2 = d2 + eps2, inv = 1 / (r2 * Math.sqrt(r2));
+				double f = (nq[node] - 3 * (qx[node] * dx + qy[node] * dy + qz[node] * dz) / r2) * inv;
+				ax += f * dx + qx[node] * inv;
+				ay += f * dy + qy[node] * inv;
+				az += f * dz + qz[node] * inv;
+			} else
+				for (int c = 0; c < nChildren; c++)
+					stack[top++] = first[node] + c;
+		}
+
+		out[0] = ax;
+		out[1] = ay;
+		out[2] = az;
+		return out;
+	}
+	public double potential(Particle p) {
+
+		if (p.isDoublePrecision()) return potential(p.getPosD().x, p.getPosD().y, dims == 3 ? p.getPosD().z : 0, p);
+		return potential(p.getPos().x, p.getPos().y, dims == 3 ? p.getPos().z : 0, p);
+	}
+	public double potential(double x, double y, double z) {return potential(x, y, dims == 3 ? z : 0, null);}
+	private double potential(double x, double y, double z, Particle p) {
+
+		double u = 0;
+		int nChildren = 1 << dims, stack[] = stack(), top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			if (from[node] == to[node]) continue;
+
+			double dx = cx[node] - x, dy = cy[node] - y, dz = cz[node] - z;
+			double d2 = dx * dx + dy * dy + dz * dz;
+			if (first[node] < 0) {
+				for (int k = from[node]; k < to[node]; k++) {
+					int i = order[k];
+					if (pts[i] == p) continue;
+					double ex = px[i] - x, ey = py[i] - y, ez = pz[i] - z;
+					u += q[i] / Math.sqrt(ex * ex + ey * ey + ez * ez + eps2);
+				}
+				continue;
+			}
+
+			double open = size[node] / theta + offset[node];
+			if (theta > 0 && d2 > open * open) {
+				double r2 = d2 + eps2;
+				u += (nq[node] - (qx[node] * dx + qy[node] * dy + qz[node] * dz) / r2) / Math.sqrt(r2);
+			} else
+				for (int c = 0; c < nChildren; c++)
+					stack[top++] = first[node] + c;
+		}
+		return u;
+	}
+	private int[] stack() {
+
+		int[] stack = stacks.get();
+		int need = ((1 << dims) - 1) * (depth + 1) + 1;
+		if (stack == null || stack.length < need) stacks.set(stack = new int[need]);
+		return stack;
+	}
+
+	public int getSize() {return n;}
+	public int getNodeCount() {return nodes;}
+	public int getDepth() {return depth;}
+	@Override
+	public boolean isValid() {return valid;}
+	@Override
+	public InverseSquare.SOLVER getType() {return InverseSquare.SOLVER.TREE;}
+}
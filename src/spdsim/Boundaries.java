@@ -8,7 +8,10 @@ public class Boundaries implements Serializable {
 	
 	private static final long serialVersionUID = 1L;
 	
+	public enum MODE {REFLECTING, PERIODIC;}
+	
 	private Environment ENV;
+	private MODE mode;
 	private PVector constrainDim, constrainPos;
 	private float elasticity, glide;
 	
@@ -16,6 +19,7 @@ public class Boundaries implements Serializable {
 		this.ENV = ENV;
 		this.elasticity = elasticity;
 		this.glide = glide;
+		mode = MODE.REFLECTING;
 		constrainDim = new PVector(width, height, depth);
 		constrainPos = new PVector(0, 0);
 	}
@@ -87,13 +91,55 @@ public class Boundaries implements Serializable {
 		p.setPos(pos);
 		return this;
 	}
+	public Boundaries wrap() {
+		float left = getLeftEdge(), right = getRightEdge(), bottom = getBottomEdge(), top = getTopEdge(), lower = getLowerEdge(), upper = getUpperEdge();
+		boolean three = ENV.getDim() == Environment.DIMENSION.THREE;
+		for (Particle p : ENV.getParticles()) {
+			double x, y, z;
+			if (p.isDoublePrecision()) {x = p.getPosD().x; y = p.getPosD().y; z = p.getPosD().z;}
+			else {x = p.getPos().x; y = p.getPos().y; z = p.getPos().z;}
+			if (x >= left && x < right && y >= bottom && y < top && (!three || (z >= lower && z < upper))) continue;
+			double sx = wrap(x, left, constrainDim.x) - x, sy = wrap(y, bottom, constrainDim.y) - y, sz = three ? wrap(z, lower, constrainDim.z) - z : 0;
+			if (p.isDoublePrecision()) {
+				PVectorD pos = p.getPosD();
+				pos.set(pos.x + sx, pos.y + sy, pos.z + sz);
+				p.getPos().set((float) pos.x, (float) pos.y, (float) pos.z);
+			} else
+				p.getPos().add((float) sx, (float) sy, (float) sz);
+			PVector prev = p.getRecord().getPrevIntegPos();
+			if (prev != null) prev.add((float) sx, (float) sy, (float) sz);
+			p.moved().onBoundaryEnter();
+		}
+		return this;
+	}
+	public static double wrap(double x, double lo, double l) {
+		double u = (x - lo) % l;
+		if (u < 0) u += l;
+		return lo + (u >= l ? 0 : u);
+	}
+	public double imageX(double dx) {return dx - constrainDim.x * Math.rint(dx / constrainDim.x);}
+	public double imageY(double dy) {return dy - constrainDim.y * Math.rint(dy / constrainDim.y);}
+	public double imageZ(double dz) {return dz - constrainDim.z * Math.rint(dz / constrainDim.z);}
+	
 	public Boundaries constrain(float elasticity, float glide, boolean inter) {
-		if (ENV.getDim() == Environment.DIMENSION.TWO)
-			for (Particle p : ENV.getParticles()) 
-				checkBoundaries2D(p, elasticity, glide, inter);
-		else
-			for (Particle p : ENV.getParticles()) 
-				checkBoundaries3D(p, elasticity, glide, inter);
+		if (mode == MODE.PERIODIC) return wrap();
+		float left = getLeftEdge(), right = getRightEdge(), bottom = getBottomEdge(), top = getTopEdge();
+		if (ENV.getDim() == Environment.DIMENSION.TWO) {
+			for (Particle p : ENV.getParticles()) {
+				PVector pos = p.getPos();
+				float r = p.getRadius();
+				if (pos.x > right - r || pos.x < left + r || pos.y > top - r || pos.y < bottom + r)
+					checkBoundaries2D(p.moved(), elasticity, glide, inter);
+			}
+			return this;
+		}
+		float lower = getLowerEdge(), upper = getUpperEdge();
+		for (Particle p : ENV.getParticles()) {
+			PVector pos = p.getPos();
+			float r = p.getRadius();
+			if (pos.x > right - r || pos.x < left + r || pos.y > top - r || pos.y < bottom + r || pos.z > upper - r || pos.z < lower + r)
+				checkBoundaries3D(p.moved(), elasticity, glide, inter);
+		}
 		return this;
 	}
 	public Boundaries constrain() {return constrain(elasticity, glide, true);}
@@ -142,6 +188,8 @@ public class Boundaries implements Serializable {
 	public float getUpperEdge() {return getLowerEdge() + constrainDim.z;}
 	public float getElasticity() {return elasticity;}
 	public float getGlide() {return glide;}
+	public MODE getMode() {return mode;}
+	public boolean isPeriodic() {return mode == MODE.PERIODIC;}
 	
 	public Boundaries setEnvironment(Environment E) {ENV = E; return this;}
 	public Boundaries setConstrainDim(PVector dim) {constrainDim = dim; return this;}
@@ -152,4 +200,5 @@ public class Boundaries implements Serializable {
 	public Boundaries setConstrainPos(float x, float y) {constrainPos.set(x, y); return this;}
 	public Boundaries setElasticity(float e) {elasticity = e; return this;}
 	public Boundaries setGlide(float g) {glide = g; return this;}
+	public Boundaries setMode(MODE m) {mode = m; return this;}
 }
@@ -3,6 +3,8 @@ package spdsim;
 import processing.core.PVector;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import spdsim.Environment.DIMENSION;
 
 public class Collider implements Serializable {
@@ -18,15 +20,14 @@ public class Collider implements Serializable {
 		cMode = COLLISIONMODE.BOUNCE;
 		this.ENV = ENV;
 	}
-	public Collider merge(Particle p1, Particle p2) {
+	public Collider merge(Particle p1, Particle p2) {ENV.remove(absorb(p1, p2)); return this;}
+	private static Particle absorb(Particle p1, Particle p2) {
 		if (p1.getRadius() > p2.getRadius()) {
 			p1.merge(p2);
-			ENV.remove(p2);
-		} else {
-			p2.merge(p1);
-			ENV.remove(p1);
+			return p2;
 		}
-		return this;
+		p2.merge(p1);
+		return p1;
 	}
 	public PVector collide2D(PVector V, PVector R) {return collide2D(V, R, elasticity, glide);}
 	public PVector collide3D(PVector V, PVector R) {return collide3D(V, R, elasticity, glide);}
@@ -67,8 +68,9 @@ public class Collider implements Serializable {
 		PVector Pfi2 = PVector.sub(p2.getPos(), p2.getRecord().getPrevIntegPos());
 		float m1 = Pfi1.magSq(), m2 = Pfi2.magSq();
 		if (m1 < 0.001f && m2 < 0.001f) {p1.overrideOverlap(p2); return this;}
-		if (m1 < 0.001f) {p2.getPos().sub(Pfi2.mult(interpolate(Pfi2, PVector.sub(p1.getPos(), p2.getPos()), p1.getRadius(), p2.getRadius()))); return this;}
+		if (m1 < 0.001f) {p2.getPos().sub(Pfi2.mult(interpolate(Pfi2, PVector.sub(p1.getPos(), p2.getPos()), p1.getRadius(), p2.getRadius()))); p2.moved(); return this;}
 		p1.getPos().sub(Pfi1.mult(interpolate(Pfi1, PVector.sub(p2.getPos(), p1.getPos()), p1.getRadius(), p2.getRadius())));
+		p1.moved();
 		return this;
 	}
 	public Collider collide(int id1, int id2, int[] numCol, float elasticity, float glide, boolean inter) {
@@ -98,32 +100,41 @@ public class Collider implements Serializable {
 		return this;
 	}
 	public Collider runCollisions(float elasticity, float glide, boolean inter) {
-		int[] numCol = new int[ENV.getParticles().size()];
+		ParticleStore store = ENV.loadStore();
+		int n = store.getSize();
+		int[] numCol = new int[n];
 		if (cMode == COLLISIONMODE.BOUNCE)
-			for (int i = 0; i < numCol.length; i++) {
-				Particle p1 = ENV.getParticles().get(i);
-				for (int j = i + 1; j < numCol.length; j++) {
-					Particle p2 = ENV.getParticles().get(j);
-					if (p1.overlaps(p2)) {
-						if (p1.isDynamic()) numCol[i]++;
+			for (int i = 0; i < n; i++)
+				for (int j = i + 1; j < n; j++)
+					if (store.overlaps(i, j)) {
+						if (store.isDynamic(i)) numCol[i]++;
 						else numCol[i] = Integer.MAX_VALUE;
-						if (p2.isDynamic()) numCol[j]++;
+						if (store.isDynamic(j)) numCol[j]++;
 						else numCol[j] = Integer.MAX_VALUE;
 					}
-				}
-			}
-		for (int i = ENV.getParticles().size() - 1; i >= 0; i--) {
-			Particle p1 = ENV.getParticles().get(i);
+		float[] mass = store.getMass();
+		boolean[] gone = cMode == COLLISIONMODE.MERGE ? new boolean[n] : null;
+		for (int i = n - 1; i >= 0; i--) {
+			if (gone != null && gone[i]) continue;
 			for (int j = i - 1; j >= 0; j--) {
-				Particle p2 = ENV.getParticles().get(j);
-				if (p1.overlaps(p2))
-					if (cMode == COLLISIONMODE.MERGE) {
-						merge(p1, p2);
-						break;
-					} else
-						collide(p1.getMass() > p2.getMass() ? j : i, p1.getMass() > p2.getMass() ? i : j, numCol, elasticity, glide, inter);
+				if ((gone != null && gone[j]) || !store.overlaps(i, j)) continue;
+				if (gone == null) {
+					collide(mass[i] > mass[j] ? j : i, mass[i] > mass[j] ? i : j, numCol, elasticity, glide, inter);
+					store.load(i).load(j);
+					continue;
+				}
+				boolean first = absorb(store.getHandle(i), store.getHandle(j)) == store.getHandle(j);
+				gone[first ? j : i] = true;
+				store.load(first ? i : j);
+				if (!first) break;
+				j = i;
 			}
 		}
+		if (gone != null) {
+			List<Particle> merged = new ArrayList<Particle>();
+			for (int i = 0; i < n; i++) if (gone[i]) merged.add(store.getHandle(i));
+			if (!merged.isEmpty()) ENV.remove(merged);
+		}
 		return this;
 	}
 	public Collider runCollisions() {return runCollisions(1, 1, false);}
@@ -0,0 +1,43 @@
+package spdsim;
+
+import java.io.Serializable;
+
+public class Composition implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final float CBRT2 = (float) Math.cbrt(2);
+	private static final float W1 = 1 / (2 - CBRT2), W0 = - CBRT2 / (2 - CBRT2);
+
+	public static final Composition VERLET = new Composition(2, new float[] {0, 1}, new float[] {1.0f / 2, 1.0f / 2});
+	public static final Composition LEAPFROG = new Composition(2, new float[] {1.0f / 2, 1.0f / 2}, new float[] {1, 0});
+	public static final Composition YOSHIDA4 = new Composition(4,
+		new float[] {W1 / 2, (W0 + W1) / 2, (W0 + W1) / 2, W1 / 2},
+		new float[] {W1, W0, W1, 0});
+
+	private final float[] drift, kick;
+	private final int order;
+
+	public Composition(int order, float[] drift, float[] kick) {
+
+		if (drift.length != kick.length)
+			throw new RuntimeException("Drift and kick coefficients must have the same length");
+
+		float cSum = 0, dSum = 0;
+		for (int i = 0; i < drift.length; i++) {
+			cSum += drift[i];
+			dSum += kick[i];
+		}
+		if (Math.abs(cSum - 1) > 1e-5f || Math.abs(dSum - 1) > 1e-5f)
+			throw new RuntimeException("Drift and kick coefficients must each add up to 1");
+
+		this.order = order;
+		this.drift = drift;
+		this.kick = kick;
+	}
+
+	public float[] getDrift() {return drift;}
+	public float[] getKick() {return kick;}
+	public int getOrder() {return order;}
+	public int getSubsteps() {return drift.length;}
+}
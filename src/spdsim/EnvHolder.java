@@ -41,10 +41,10 @@ public class EnvHolder implements Serializable {
 		chargeUnit = "C";
 	}
 	public EnvHolder smallSave(Environment ENV) {
-		translate = ENV.getVisualizer().getTranslate().copy();
+		translate = ENV.hasVisualizer() ? ENV.getVisualizer().getTranslate().copy() : new PVector();
 		constrainDim = ENV.getBoundaries().getConstrainDim().copy();
 		constrainPos = ENV.getBoundaries().getConstrainPos().copy();
-		scaling = ENV.getVisualizer().getScaling();
+		scaling = ENV.hasVisualizer() ? ENV.getVisualizer().getScaling() : 1;
 		lengthUnit = ENV.getUnits().getLengthUnit();
 		timeUnit = ENV.getUnits().getTimeUnit();
 		massUnit = ENV.getUnits().getMassUnit();
@@ -53,7 +53,7 @@ public class EnvHolder implements Serializable {
 	}
 	public EnvHolder smallLoad(Environment ENV) {
 		ENV.getBoundaries().setConstrainDim(constrainDim.copy()).setConstrainPos(constrainPos.copy());
-		ENV.getVisualizer().setTranslate(translate.copy()).setScaling(scaling);
+		if (ENV.hasVisualizer()) ENV.getVisualizer().setTranslate(translate.copy()).setScaling(scaling);
 		return this;
 	}
 	private static void switchData(List<Particle> savePts, List<Particle> saveSel,
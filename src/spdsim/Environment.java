@@ -3,8 +3,12 @@ import java.util.List;
 
 import java.util.Map;
 import java.util.HashMap;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import processing.core.*;
 
 public class Environment implements Serializable {
@@ -12,8 +16,10 @@ public class Environment implements Serializable {
 	private static final long serialVersionUID = 1L;
 	
 	public enum DIMENSION {TWO, THREE;}
+	public enum PRECISION {SINGLE, DOUBLE;}
 		
 	private DIMENSION dim;
+	private PRECISION precision;
 	
 	private Collider collider;
 	private Boundaries bounds;
@@ -29,8 +35,17 @@ public class Environment implements Serializable {
 	private Map<String, List<Particle>> groups;
 	private Map<String, Particle> particulars;
 	private Map<String, EnvHolder> backups;
+	private transient ParticleStore store;
+	private transient ForkJoinPool pool;
+	private transient boolean ownPool;
+	private transient Random random;
+	private int threads;
+	private boolean collisions, constrained;
 				
-	public Environment(PApplet parent) {
+	public Environment(PApplet parent) {this(parent, parent.width, parent.height, parent.height);}
+	public Environment(float width, float height, float depth) {this(null, width, height, depth);}
+	public Environment(float width, float height) {this(null, width, height, height);}
+	private Environment(PApplet parent, float width, float height, float depth) {
 		
 		particles = new ArrayList<Particle>();
 		interactions = new ArrayList<Interaction>();
@@ -39,13 +54,18 @@ public class Environment implements Serializable {
 		selected = new ArrayList<Particle>();
 		groups = new HashMap<String, List<Particle>>();
 		particulars = new HashMap<String, Particle>();
+		store = new ParticleStore();
+		threads = 1;
+		collisions = true;
+		constrained = true;
 		
-		visual = new EVisualizer(this, parent);
+		if (parent != null) visual = new EVisualizer(this, parent);
 		collider = new Collider(this, 1, 1);
-		bounds = new Boundaries(this, parent.width, parent.height, parent.height, 1, 1);
+		bounds = new Boundaries(this, width, height, depth, 1, 1);
 		units = new Units(this, "m", "s", "kg", "C");
 		integ = new Integrator(0.001f, this);
 		dim = DIMENSION.TWO;
+		precision = PRECISION.SINGLE;
 		
 		backups = new HashMap<String, EnvHolder>();
 		backups.put("main", new EnvHolder());
@@ -53,20 +73,52 @@ public class Environment implements Serializable {
 		Units.initUnits();
 	}
 	
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		
+		ObjectInputStream.GetField f = in.readFields();
+		dim = (DIMENSION) f.get("dim", DIMENSION.TWO);
+		precision = (PRECISION) f.get("precision", PRECISION.SINGLE);
+		collider = (Collider) f.get("collider", null);
+		bounds = (Boundaries) f.get("bounds", null);
+		units = (Units) f.get("units", null);
+		visual = (EVisualizer) f.get("visual", null);
+		integ = (Integrator) f.get("integ", null);
+		particles = (List<Particle>) f.get("particles", null);
+		selected = (List<Particle>) f.get("selected", null);
+		joints = (List<Spring>) f.get("joints", null);
+		groups = (Map<String, List<Particle>>) f.get("groups", null);
+		particulars = (Map<String, Particle>) f.get("particulars", null);
+		backups = (Map<String, EnvHolder>) f.get("backups", null);
+		threads = f.defaulted("threads") ? 1 : f.get("threads", 1);
+		collisions = f.defaulted("collisions") || f.get("collisions", true);
+		constrained = f.defaulted("constrained") || f.get("constrained", true);
+		if (precision == null) precision = PRECISION.SINGLE;
+		interactions = new ArrayList<Interaction>();
+		externals = new ArrayList<ExternalForce>();
+	}
+	
+	private PApplet parent() {return visual != null ? visual.getParent() : null;}
+	private float random(float low, float high) {
+		if (parent() != null) return parent().random(low, high);
+		if (random == null) random = new Random();
+		return low + (high - low) * random.nextFloat();
+	}
+	
 	public Particle atRandomPos(float vx, float vy, float vz, float md, float cd, float rd) {
-		return new Particle(visual.getParent(), visual.getParent().random(bounds.getLeftEdge(), bounds.getRightEdge()), visual.getParent().random(bounds.getBottomEdge(), bounds.getRightEdge()),
-				visual.getParent().random(bounds.getLowerEdge(), bounds.getUpperEdge()), vx, vy, vx, md, cd, rd);
+		return new Particle(parent(), random(bounds.getLeftEdge(), bounds.getRightEdge()), random(bounds.getBottomEdge(), bounds.getRightEdge()),
+				random(bounds.getLowerEdge(), bounds.getUpperEdge()), vx, vy, vx, md, cd, rd);
 	}
 	public Particle atRandomPos(float vx, float vy, float md, float cd, float rd) {
-		return new Particle(visual.getParent(), visual.getParent().random(bounds.getLeftEdge(), bounds.getRightEdge()), visual.getParent().random(bounds.getBottomEdge(), bounds.getRightEdge()), vx, vy, md, cd, rd);
+		return new Particle(parent(), random(bounds.getLeftEdge(), bounds.getRightEdge()), random(bounds.getBottomEdge(), bounds.getRightEdge()), vx, vy, md, cd, rd);
 	}
 	public Particle atRandomPos(float md, float cd, float rd) {return atRandomPos(0, 0, md, cd, rd);}
 	
 	public Particle atRandomVel(float x, float y, float z, float md, float cd, float rd, float vMax) {
-		return new Particle(visual.getParent(), x, y, z, PVector.random3D().setMag(visual.getParent().random(vMax)), md, cd, rd);
+		return new Particle(parent(), x, y, z, PVector.random3D().setMag(random(0, vMax)), md, cd, rd);
 	}
 	public Particle atRandomVel(float x, float y, float md, float cd, float rd, float vMax) {
-		return new Particle(visual.getParent(), x, y, PVector.random2D().setMag(visual.getParent().random(vMax)), md, cd, rd);
+		return new Particle(parent(), x, y, PVector.random2D().setMag(random(0, vMax)), md, cd, rd);
 	}
 	public Particle atRandomVel(float md, float cd, float rd, float vMax) {return atRandomVel(0, 0, md, cd, rd, vMax);}
 	
@@ -103,21 +155,45 @@ public class Environment implements Serializable {
 	
 	public Environment savePositions() {for (Particle p : particles) p.getRecord().savePosition(); return this;}
 	public Environment saveRelPositions(List<Particle> rel) {for (Particle p : particles) p.getRecord().saveRelPosition(rel); return this;}
+	public Environment savePositions(float t) {for (Particle p : particles) p.getRecord().savePosition(integ.getDensePos(p, t)); return this;}
 	public Environment saveVelocityRecords() {for (Particle p : particles) p.getRecord().saveVelocity(); return this;}
+	public Environment saveVelocityRecords(float t) {for (Particle p : particles) p.getRecord().saveVelocity(integ.getDenseVel(p, t)); return this;}
 	public Environment saveRelVelocityRecords(List<Particle> rel) {for (Particle p : particles) p.getRecord().saveRelVelocity(rel); return this;}
 	public Environment saveEnergyRecords() {for (Particle p : particles) p.getRecord().saveEnergy(); return this;}
 	public Environment saveRelEnergyRecords(List<Particle> rel) {for (Particle p : particles) p.getRecord().saveRelEnergy(rel); return this;}
 	public Environment saveRecords() {for (Particle p : particles) p.getRecord().save(); return this;}
 	public Environment saveRelRecords(List<Particle> rel) {for (Particle p : particles) p.getRecord().saveRel(rel); return this;}
 	
-	public Environment moveOrigin(PVector center) {for (Particle p : particles) p.getPos().sub(center); bounds.getConstrainPos().sub(center); return this;}
+	public Environment update() {
+		integ.forward();
+		if (collisions) collider.runCollisions();
+		if (constrained) bounds.constrain();
+		return this;
+	}
+	public Environment run(int steps) {for (int i = 0; i < steps; i++) update(); return this;}
+	public Environment runUntil(float t) {
+		
+		while (t - integ.getTime() > 1e-6f * integ.getDt()) {
+			float dt = integ.getDt(), left = t - integ.getTime();
+			if (left >= dt) {
+				update();
+				continue;
+			}
+			integ.setDt(left);
+			update();
+			if (!integ.isAdaptive()) integ.setDt(dt);
+		}
+		return this;
+	}
+	
+	public Environment moveOrigin(PVector center) {for (Particle p : particles) {p.getPos().sub(center); p.moved();} bounds.getConstrainPos().sub(center); return this;}
 	
-	public PVector transform(float x, float y, float z) {return Physics.transform(x, y, z, visual.getTranslate(), visual.getScaling());}
-	public PVector transform(float x, float y) {return Physics.transform(x, y, visual.getTranslate(), visual.getScaling());}
-	public PVector transform(PVector vec) {return Physics.transform(vec.x, vec.y, vec.z, visual.getTranslate(), visual.getScaling());}
-	public PVector invTransform(float x, float y, float z) {return Physics.invTransform(x, y, z, visual.getTranslate(), visual.getScaling());}
-	public PVector invTransform(float x, float y) {return Physics.invTransform(x, y, visual.getTranslate(), visual.getScaling());}
-	public PVector invTransform(PVector vec) {return Physics.invTransform(vec.x, vec.y, vec.z, visual.getTranslate(), visual.getScaling());}
+	public PVector transform(float x, float y, float z) {return Physics.transform(x, y, z, getVisualizer().getTranslate(), getVisualizer().getScaling());}
+	public PVector transform(float x, float y) {return Physics.transform(x, y, getVisualizer().getTranslate(), getVisualizer().getScaling());}
+	public PVector transform(PVector vec) {return Physics.transform(vec.x, vec.y, vec.z, getVisualizer().getTranslate(), getVisualizer().getScaling());}
+	public PVector invTransform(float x, float y, float z) {return Physics.invTransform(x, y, z, getVisualizer().getTranslate(), getVisualizer().getScaling());}
+	public PVector invTransform(float x, float y) {return Physics.invTransform(x, y, getVisualizer().getTranslate(), getVisualizer().getScaling());}
+	public PVector invTransform(PVector vec) {return Physics.invTransform(vec.x, vec.y, vec.z, getVisualizer().getTranslate(), getVisualizer().getScaling());}
 	
 	public static void implement(Particle p, Interaction inter) {p.add(inter); inter.add(p);}
 	public static void implement(List<Particle> pts, Interaction inter) {for (Particle p : pts) implement(p, inter);}
@@ -141,6 +217,10 @@ public class Environment implements Serializable {
 	public Particle getLast() {if (isEmpty()) return null; return particles.get(particles.size() - 1);}
 	public Particle getParticle(String label) {return particulars.get(label);}
 	public Integrator getIntegrator() {return integ;}
+	public ParticleStore getStore() {if (store == null) store = new ParticleStore(particles.size()); return store;}
+	public ParticleStore loadStore() {return getStore().load(particles);}
+	public ForkJoinPool getPool() {if (pool == null) {pool = new ForkJoinPool(threads); ownPool = true;} return pool;}
+	public int getThreads() {return threads;}
 	public Interaction getInteraction(String id) {for (Interaction inter : interactions) if (inter.getId().equals(id)) return inter; return null;}
 	public ExternalForce getExternal(String id) {for (ExternalForce ext : externals) if (ext.getId().equals(id)) return ext; return null;}
 	public List<List<PVector>> getPositionRecords() {List<List<PVector>> res = new ArrayList<List<PVector>>();
@@ -162,11 +242,12 @@ public class Environment implements Serializable {
 	public Map<String, Particle> getParticulars() {return particulars;}
 	public Map<String, EnvHolder> getBackups() {return backups;}
 	public DIMENSION getDim() {return dim;}
+	public PRECISION getPrecision() {return precision;}
 	public Boundaries getBoundaries() {return bounds;}
 	public Collider getCollider() {return collider;}
 	public Units getUnits() {return units;}
 	public EnvHolder getBackup(String id) {return backups.get(id);}
-	public EVisualizer getVisualizer() {return visual;}
+	public EVisualizer getVisualizer() {if (visual == null) visual = new EVisualizer(this, null); return visual;}
 	public boolean isEmpty() {return particles.isEmpty();}
 	public boolean contains(Particle p) {return particles.contains(p);}
 	public boolean contains(Interaction inter) {return interactions.contains(inter);}
@@ -176,6 +257,10 @@ public class Environment implements Serializable {
 	public boolean areAllSelected(List<Particle> pts) {for (Particle p : pts) if (!isSelected(p)) return false; return true;}
 	public boolean areAllSelected() {return areAllSelected(particles);}
 	public boolean hasBackup(String id) {return backups.containsKey(id);}
+	public boolean hasVisualizer() {return visual != null;}
+	public boolean hasCollisions() {return collisions;}
+	public boolean isConstrained() {return constrained;}
+	public boolean isPeriodic() {return bounds.isPeriodic();}
 	public boolean overlaps(Particle p) {
 		for (Particle other : particles)
 			if (p != other && p.overlaps(other))
@@ -183,6 +268,21 @@ public class Environment implements Serializable {
 		return false;
 	}
 	public Environment setIntegrator(Integrator integ) {this.integ = integ; return this;}
+	public Environment setThreads(int t) {
+		if (t < 1) throw new RuntimeException("Thread count must be at least 1");
+		if (pool != null && pool.getParallelism() != t) releasePool();
+		threads = t;
+		return this;
+	}
+	/** The pool is only borrowed: the Environment never shuts down a pool it did not create. */
+	public Environment setPool(ForkJoinPool fjp) {releasePool(); pool = fjp; ownPool = false; threads = fjp.getParallelism(); return this;}
+	/** Shuts down the pool created by getPool(), if any. A later parallel step creates a new one. */
+	public Environment releasePool() {
+		if (pool != null && ownPool) pool.shutdown();
+		pool = null;
+		ownPool = false;
+		return this;
+	}
 	public Environment setBackups(Map<String, EnvHolder> bckp) {backups = bckp; return this;}
 	public Environment setParticles(List<Particle> pts) {particles = pts; return this;}
 	public Environment setInteractions(List<Interaction> inters) {interactions = inters; return this;}
@@ -202,7 +302,16 @@ public class Environment implements Serializable {
 	public Environment clearGroup(String label) {groups.get(label).clear(); return this;}
 	public Environment clearGroups() {for (Map.Entry<String, List<Particle>> entry : groups.entrySet()) groups.get(entry.getKey()).clear(); return this;}
 	public Environment setDim(DIMENSION dim) {this.dim = dim; for (Particle p : particles) p.setDim(dim); return this;}
+	public Environment setPrecision(PRECISION prec) {precision = prec; for (Particle p : particles) p.setDoublePrecision(prec == PRECISION.DOUBLE); return this;}
 	public Environment setBoundaries(Boundaries b) {bounds = b; return this;}
+	public Environment setCollisions(boolean val) {collisions = val; return this;}
+	public Environment setConstrained(boolean val) {constrained = val; return this;}
+	public Environment setPeriodic(boolean val) {
+		bounds.setMode(val ? Boundaries.MODE.PERIODIC : Boundaries.MODE.REFLECTING);
+		for (Interaction inter : interactions) inter.setPeriodic(val ? bounds : null);
+		if (val) constrained = true;
+		return this;
+	}
 	public Environment setVisualizer(EVisualizer ev) {visual = ev; return this;}
 	public Environment setCollider(Collider c) {collider = c; return this;}
 	public Environment setUnits(Units u) {units = u; return this;}
@@ -232,7 +341,7 @@ public class Environment implements Serializable {
 		if (contains(p))
 			return this;
 		
-		p.setDim(dim);
+		p.setDim(dim).setDoublePrecision(precision == PRECISION.DOUBLE);
 		for (Interaction inter : interactions)
 			if (inter.includedInAddition())
 				implement(p, inter);
@@ -240,11 +349,11 @@ public class Environment implements Serializable {
 			if (ext.includedInAddition())
 				implement(p, ext);
 		particles.add(p);
-		p.getVisualizer().setTranslate(visual.getTranslate()).setScaling(visual.getScaling());
+		if (visual != null) p.getVisualizer().setTranslate(visual.getTranslate()).setScaling(visual.getScaling());
 		return this;
 	}
 	
-	public Environment add(Interaction inter) {if (!contains(inter)) interactions.add(inter); return this;}
+	public Environment add(Interaction inter) {if (!contains(inter)) interactions.add(inter); if (bounds.isPeriodic()) inter.setPeriodic(bounds); return this;}
 	public Environment add(ExternalForce ext) {if (!contains(ext)) externals.add(ext); return this;}
 	public Environment add(Spring s) {
 		add(s.getFirst()).add(s.getSecond());
@@ -267,7 +376,7 @@ public class Environment implements Serializable {
 		for (int i = p.getJoints().size() - 1; i >= 0; i--) remove(p.getJoints().get(i));
 		unSelect(p);
 		if (remFG) removeFromGroups(p);
-		particles.remove(p);
+		particles.remove(p.unbind());
 		return this;
 	}
 	public Environment remove(Particle p) {return remove(p, true);}
@@ -278,6 +387,7 @@ public class Environment implements Serializable {
 	public Environment remove(List<Particle> pts) {for (int i = pts.size() - 1; i >= 0; i--) remove(pts.get(i)); return this;}
 	public Environment clear() {
 		neglectAll();
+		for (Particle p : particles) p.unbind();
 		particles.clear();
 		return this;
 	}
@@ -0,0 +1,58 @@
+package spdsim;
+
+import java.util.Map;
+
+import processing.core.PVector;
+
+/** Pairs at zero distance exert no force, and a massless target moves as a unit test mass would. */
+public class ExpressionInteraction extends Interaction {
+
+	private ForceLaw law;
+	private boolean symmetric;
+
+	public ExpressionInteraction(String id, ForceLaw law) {
+
+		super(id);
+		this.law = law;
+		symmetric = false;
+	}
+	public ExpressionInteraction(String id, String force, String potential, Map<String, Double> parameters) {this(id, ForceLaw.compile(force, potential, parameters));}
+	public ExpressionInteraction(String id, String force, String potential) {this(id, force, potential, null);}
+
+	@Override
+	public PVector acceleration(Particle p1, Particle p2) {
+
+		PVector d = PVector.sub(p2.getPos(), p1.getPos());
+		double r = d.mag(), m = mass(p2);
+		if (r == 0) return new PVector(0, 0, 0);
+		return d.mult((float) (law.force(r, p1.getMass(), m, p1.getCharge(), p2.getCharge()) / (r * m)));
+	}
+	@Override
+	public PVectorD accelerationD(Particle p1, Particle p2) {
+
+		if (!p1.isDoublePrecision() || !p2.isDoublePrecision()) return super.accelerationD(p1, p2);
+		PVectorD d = PVectorD.sub(p2.getPosD(), p1.getPosD());
+		double r = d.mag(), m = mass(p2);
+		if (r == 0) return new PVectorD(0, 0, 0);
+		return d.mult(law.force(r, p1.getMass(), m, p1.getCharge(), p2.getCharge()) / (r * m));
+	}
+	private static double mass(Particle p) {return p.getMass() == 0 ? 1 : p.getMass();}
+	@Override
+	public float potentialEnergy(Particle p1, Particle p2) {
+		return (float) law.potential(PVector.dist(p1.getPos(), p2.getPos()), p1.getMass(), p2.getMass(), p1.getCharge(), p2.getCharge());
+	}
+
+	@Override
+	public boolean isSymmetric() {return symmetric;}
+	/** The float loop of the law serves whole passes when it can; acceleration() and accelerationD() define the result, and potentials always come from potentialEnergy(). */
+	@Override
+	public boolean isBatched() {return true;}
+	@Override
+	public void accelerations(ParticleBatch targets, int from, int to, ParticleBatch sources, float[] out) {law.accelerations(targets, from, to, sources, out);}
+
+	public ForceLaw getLaw() {return law;}
+
+	public ExpressionInteraction setLaw(ForceLaw law) {this.law = law; return this;}
+	public ExpressionInteraction setLaw(String force, String potential, Map<String, Double> parameters) {return setLaw(ForceLaw.compile(force, potential, parameters));}
+	public ExpressionInteraction setSymmetric(boolean s) {symmetric = s; return this;}
+}
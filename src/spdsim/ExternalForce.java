@@ -44,8 +44,35 @@ public abstract class ExternalForce {
 	float potField(PVector pos) {return potField(pos.x, pos.y, pos.z);}
 	
 	public abstract PVector acceleration(Particle p);
+	public PVectorD accelerationD(Particle p) {PVector a = acceleration(p); return new PVectorD(a.x, a.y, a.z);}
 	public float potentialEnergy(Particle p) {return 0;}
 	
+	/** A uniform force is evaluated once per pass and the result is given to every particle, so its acceleration must not depend on the particle. */
+	public boolean isUniform() {return false;}
+	/** A positional force depends on the position alone, so the kernel evaluates accelField() once per distinct position and shares the result. */
+	public boolean isPositional() {return false;}
+	/** True when accelerations() is overridden with a bulk evaluation; only then does the kernel gather a ParticleBatch for it. */
+	public boolean isBatched() {return false;}
+	public void accelerations(ParticleBatch batch, int from, int to, float[] out) {
+		
+		if (from >= to) return;
+		if (isUniform()) {
+			PVector a = acceleration(batch.getHandle(from));
+			for (int i = from; i < to; i++) {
+				out[3 * i] += a.x;
+				out[3 * i + 1] += a.y;
+				out[3 * i + 2] += a.z;
+			}
+			return;
+		}
+		for (int i = from; i < to; i++) {
+			PVector a = acceleration(batch.getHandle(i));
+			out[3 * i] += a.x;
+			out[3 * i + 1] += a.y;
+			out[3 * i + 2] += a.z;
+		}
+	}
+	
 	public List<Particle> getParticles() {return particles;}
 	public String getId() {return id;}
 	public boolean includedInAddition() {return includeAdded;}
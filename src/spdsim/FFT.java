@@ -0,0 +1,65 @@
+package spdsim;
+
+public abstract class FFT {
+
+	public static boolean isPowerOfTwo(int n) {return n > 0 && (n & (n - 1)) == 0;}
+	public static int nextPowerOfTwo(int n) {int p = 1; while (p < n) p <<= 1; return p;}
+
+	public static void transform(double[] re, double[] im, int n, int offset, int stride, boolean inverse) {
+
+		if (!isPowerOfTwo(n)) throw new RuntimeException("FFT length must be a power of two: " + n);
+
+		for (int i = 1, j = 0; i < n; i++) {
+			int bit = n >> 1;
+			for (; (j & bit) != 0; bit >>= 1) j ^= bit;
+			j ^= bit;
+			if (i < j) {
+				int a = offset + i * stride, b = offset + j * stride;
+				double t = re[a]; re[a] = re[b]; re[b] = t;
+				t = im[a]; im[a] = im[b]; im[b] = t;
+			}
+		}
+
+		for (int len = 2; len <= n; len <<= 1) {
+			double angle = (inverse ? 2 : - 2) * Math.PI / len;
+			double wr = Math.cos(angle), wi = Math.sin(angle);
+			for (int i = 0; i < n; i += len) {
+				double cr = 1, ci = 0;
+				for (int k = 0; k < len / 2; k++) {
+					int a = offset + (i + k) * stride, b = a + len / 2 * stride;
+					double xr = re[b] * cr - im[b] * ci, xi = re[b] * ci + im[b] * cr;
+					re[b] = re[a] - xr;
+					im[b] = im[a] - xi;
+					re[a] += xr;
+					im[a] += xi;
+					double t = cr * wr - ci * wi;
+					ci = cr * wi + ci * wr;
+					cr = t;
+				}
+			}
+		}
+
+		if (inverse)
+			for (int i = 0; i < n; i++) {
+				re[offset + i * stride] /= n;
+				im[offset + i * stride] /= n;
+			}
+	}
+	public static void transform(double[] re, double[] im, boolean inverse) {transform(re, im, re.length, 0, 1, inverse);}
+
+	public static void transform3D(double[] re, double[] im, int nx, int ny, int nz, boolean inverse) {
+
+		if (nz > 1)
+			for (int x = 0; x < nx; x++)
+				for (int y = 0; y < ny; y++)
+					transform(re, im, nz, (x * ny + y) * nz, 1, inverse);
+		if (ny > 1)
+			for (int x = 0; x < nx; x++)
+				for (int z = 0; z < nz; z++)
+					transform(re, im, ny, x * ny * nz + z, nz, inverse);
+		if (nx > 1)
+			for (int y = 0; y < ny; y++)
+				for (int z = 0; z < nz; z++)
+					transform(re, im, nx, y * nz + z, ny * nz, inverse);
+	}
+}
@@ -0,0 +1,466 @@
+package spdsim;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class FastMultipole extends FieldSolver {
+
+	private static final int LEAF = 16, MAX_DEPTH = 32;
+
+	private int expansion, terms;
+	private int[] mt, mu, mv, degree;
+	private int[][][] index;
+	private int[] pairs, shifts, recAxis, recOne, recTwo;
+	private double[] recFactor;
+	private double[] mono, derivatives;
+
+	private Particle[] pts;
+	private double[] px, py, pz, q, ax, ay, az, phi;
+	private int[] order, scratch;
+	private int n, sources, dims;
+	private final Map<Particle, Integer> lookup;
+
+	private double[] ox, oy, oz, radius, multipole, local;
+	private int[] first, from, to;
+	private int nodes, depth;
+
+	private double theta, eps2;
+	private boolean valid;
+
+	public FastMultipole(int expansion) {
+
+		pts = new Particle[0];
+		px = new double[0];
+		py = new double[0];
+		pz = new double[0];
+		q = new double[0];
+		ax = new double[0];
+		ay = new double[0];
+		az = new double[0];
+		phi = new double[0];
+		order = new int[0];
+		scratch = new int[0];
+		lookup = new IdentityHashMap<Particle, Integer>();
+		setExpansionOrder(expansion);
+	}
+	public FastMultipole() {this(4);}
+
+	public FastMultipole setExpansionOrder(int p) {
+
+		if (p < 1) throw new RuntimeException("Expansion order must be at least 1");
+		expansion = p;
+		terms = (p + 1) * (p + 2) * (p + 3) / 6;
+		mt = new int[terms];
+		mu = new int[terms];
+		mv = new int[terms];
+		degree = new int[terms];
+		index = new int[p + 1][p + 1][p + 1];
+		mono = new double[terms];
+		derivatives = new double[(p + 1) * terms];
+
+		int c = 0;
+		for (int o = 0; o <= p; o++)
+			for (int t = o; t >= 0; t--)
+				for (int u = o - t; u >= 0; u--) {
+					int v = o - t - u;
+					mt[c] = t; mu[c] = u; mv[c] = v; degree[c] = o;
+					index[t][u][v] = c++;
+				}
+
+		recAxis = new int[terms];
+		recOne = new int[terms];
+		recTwo = new int[terms];
+		recFactor = new double[terms];
+		for (c = 1; c < terms; c++) {
+			int t = mt[c], u = mu[c], v = mv[c], k;
+			if (t > 0) {
+				recAxis[c] = 0; k = t; t--;
+			} else if (u > 0) {
+				recAxis[c] = 1; k = u; u--;
+			} else {
+				recAxis[c] = 2; k = v; v--;
+			}
+			recOne[c] = index[t][u][v];
+			recFactor[c] = k - 1;
+			recTwo[c] = k < 2 ? - 1 : recAxis[c] == 0 ? index[t - 1][u][v] : recAxis[c] == 1 ? index[t][u - 1][v] : index[t][u][v - 1];
+		}
+
+		int count = 0;
+		for (int a = 0; a < terms; a++)
+			for (int b = 0; b < terms && degree[a] + degree[b] <= p; b++) count++;
+		pairs = new int[3 * count];
+		count = 0;
+		for (int a = 0; a < terms; a++)
+			for (int b = 0; b < terms && degree[a] + degree[b] <= p; b++) {
+				pairs[count++] = a;
+				pairs[count++] = b;
+				pairs[count++] = index[mt[a] + mt[b]][mu[a] + mu[b]][mv[a] + mv[b]];
+			}
+
+		count = 0;
+		for (int a = 0; a < terms; a++)
+			for (int b = 0; b < terms; b++)
+				if (mt[b] <= mt[a] && mu[b] <= mu[a] && mv[b] <= mv[a]) count++;
+		shifts = new int[3 * count];
+		count = 0;
+		for (int a = 0; a < terms; a++)
+			for (int b = 0; b < terms; b++)
+				if (mt[b] <= mt[a] && mu[b] <= mu[a] && mv[b] <= mv[a]) {
+					shifts[count++] = a;
+					shifts[count++] = b;
+					shifts[count++] = index[mt[a] - mt[b]][mu[a] - mu[b]][mv[a] - mv[b]];
+				}
+
+		multipole = null;
+		local = null;
+		ensureNodes(64);
+		valid = false;
+		return this;
+	}
+
+	private FastMultipole ensurePoints(int cap) {
+
+		if (cap <= px.length) return this;
+		int nCap = Math.max(cap, 2 * px.length);
+		pts = Arrays.copyOf(pts, nCap);
+		px = Arrays.copyOf(px, nCap);
+		py = Arrays.copyOf(py, nCap);
+		pz = Arrays.copyOf(pz, nCap);
+		q = Arrays.copyOf(q, nCap);
+		ax = Arrays.copyOf(ax, nCap);
+		ay = Arrays.copyOf(ay, nCap);
+		az = Arrays.copyOf(az, nCap);
+		phi = Arrays.copyOf(phi, nCap);
+		order = Arrays.copyOf(order, nCap);
+		scratch = Arrays.copyOf(scratch, nCap);
+		return this;
+	}
+	private FastMultipole ensureNodes(int cap) {
+
+		if (multipole != null && cap * terms <= multipole.length) return this;
+		int nCap = Math.max(cap, ox == null ? 0 : 2 * ox.length);
+		ox = ox == null ? new double[nCap] : Arrays.copyOf(ox, nCap);
+		oy = oy == null ? new double[nCap] : Arrays.copyOf(oy, nCap);
+		oz = oz == null ? new double[nCap] : Arrays.copyOf(oz, nCap);
+		radius = radius == null ? new double[nCap] : Arrays.copyOf(radius, nCap);
+		first = first == null ? new int[nCap] : Arrays.copyOf(first, nCap);
+		from = from == null ? new int[nCap] : Arrays.copyOf(from, nCap);
+		to = to == null ? new int[nCap] : Arrays.copyOf(to, nCap);
+		multipole = multipole == null ? new double[nCap * terms] : Arrays.copyOf(multipole, nCap * terms);
+		local = local == null ? new double[nCap * terms] : Arrays.copyOf(local, nCap * terms);
+		return this;
+	}
+
+	@Override
+	public FastMultipole build(InverseSquare inter) {
+
+		for (Particle p : inter.getParticles())
+			if (!p.isActive()) {
+				valid = false;
+				return this;
+			}
+		return solve(inter, inter.getParticles(), null, null, null);
+	}
+
+	public FastMultipole solve(InverseSquare inter, List<Particle> list, float[] x, float[] y, float[] z) {
+
+		int extra = x == null ? 0 : x.length;
+		sources = list.size();
+		n = sources + extra;
+		valid = false;
+		lookup.clear();
+		if (n == 0) return this;
+
+		ensurePoints(n);
+		dims = sources > 0 && list.get(0).getDim() == Environment.DIMENSION.TWO && z == null ? 2 : 3;
+		theta = inter.getOpeningAngle();
+		eps2 = inter.getSoftening() * inter.getSoftening();
+
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+		double maxX = - Double.MAX_VALUE, maxY = - Double.MAX_VALUE, maxZ = - Double.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			if (i < sources) {
+				Particle p = list.get(i);
+				pts[i] = p;
+				lookup.put(p, i);
+				if (p.isDoublePrecision()) {
+					px[i] = p.getPosD().x;
+					py[i] = p.getPosD().y;
+					pz[i] = dims == 3 ? p.getPosD().z : 0;
+				} else {
+					px[i] = p.getPos().x;
+					py[i] = p.getPos().y;
+					pz[i] = dims == 3 ? p.getPos().z : 0;
+				}
+				q[i] = inter.getSource(p);
+			} else {
+				pts[i] = null;
+				px[i] = x[i - sources];
+				py[i] = y[i - sources];
+				pz[i] = z == null ? 0 : z[i - sources];
+				q[i] = 0;
+			}
+			ax[i] = ay[i] = az[i] = phi[i] = 0;
+			order[i] = i;
+			minX = Math.min(minX, px[i]); maxX = Math.max(maxX, px[i]);
+			minY = Math.min(minY, py[i]); maxY = Math.max(maxY, py[i]);
+			minZ = Math.min(minZ, pz[i]); maxZ = Math.max(maxZ, pz[i]);
+		}
+
+		double half = Math.max(maxX - minX, maxY - minY);
+		if (dims == 3) half = Math.max(half, maxZ - minZ);
+		half = half / 2 * (1 + 1e-9) + Double.MIN_NORMAL;
+
+		nodes = 1;
+		depth = 0;
+		build(0, 0, n, (minX + maxX) / 2, (minY + maxY) / 2, (minZ + maxZ) / 2, half, 0);
+		interact(0);
+		evaluate();
+		valid = true;
+		return this;
+	}
+
+	private void build(int node, int lo, int hi, double cx, double cy, double cz, double half, int level) {
+
+		from[node] = lo;
+		to[node] = hi;
+		depth = Math.max(depth, level);
+		int base = node * terms;
+		Arrays.fill(multipole, base, base + terms, 0);
+		Arrays.fill(local, base, base + terms, 0);
+
+		double minX = cx, minY = cy, minZ = cz, maxX = cx, maxY = cy, maxZ = cz;
+		if (hi > lo) {
+			minX = minY = minZ = Double.MAX_VALUE;
+			maxX = maxY = maxZ = - Double.MAX_VALUE;
+		}
+		for (int k = lo; k < hi; k++) {
+			int i = order[k];
+			minX = Math.min(minX, px[i]); maxX = Math.max(maxX, px[i]);
+			minY = Math.min(minY, py[i]); maxY = Math.max(maxY, py[i]);
+			minZ = Math.min(minZ, pz[i]); maxZ = Math.max(maxZ, pz[i]);
+		}
+		ox[node] = (minX + maxX) / 2;
+		oy[node] = (minY + maxY) / 2;
+		oz[node] = (minZ + maxZ) / 2;
+		double r2 = 0;
+		for (int k = lo; k < hi; k++) {
+			int i = order[k];
+			double dx = px[i] - ox[node], dy = py[i] - oy[node], dz = pz[i] - oz[node];
+			r2 = Math.max(r2, dx * dx + dy * dy + dz * dz);
+		}
+		radius[node] = Math.sqrt(r2);
+
+		if (hi - lo <= LEAF || level >= MAX_DEPTH) {
+			first[node] = - 1;
+			for (int k = lo; k < hi; k++) {
+				int i = order[k];
+				if (q[i] == 0) continue;
+				monomials(ox[node] - px[i], oy[node] - py[i], oz[node] - pz[i]);
+				for (int c = 0; c < terms; c++) multipole[base + c] += q[i] * mono[c];
+			}
+			return;
+		}
+
+		int nChildren = 1 << dims;
+		int[] count = new int[nChildren + 1];
+		for (int k = lo; k < hi; k++) count[octant(order[k], cx, cy, cz) + 1]++;
+		for (int c = 0; c < nChildren; c++) count[c + 1] += count[c];
+		int[] start = Arrays.copyOf(count, nChildren);
+		for (int k = lo; k < hi; k++) {
+			int i = order[k];
+			scratch[lo + start[octant(i, cx, cy, cz)]++] = i;
+		}
+		System.arraycopy(scratch, lo, order, lo, hi - lo);
+
+		ensureNodes(nodes + nChildren);
+		int child = nodes;
+		first[node] = child;
+		nodes += nChildren;
+		double h = half / 2;
+		for (int c = 0; c < nChildren; c++) {
+			build(child + c, lo + count[c], lo + count[c + 1],
+				cx + ((c & 1) != 0 ? h : - h), cy + ((c & 2) != 0 ? h : - h), cz + ((c & 4) != 0 ? h : - h), h, level + 1);
+
+			if (from[child + c] == to[child + c]) continue;
+			monomials(ox[node] - ox[child + c], oy[node] - oy[child + c], oz[node] - oz[child + c]);
+			int cBase = (child + c) * terms;
+			for (int s = 0; s < shifts.length; s += 3)
+				multipole[base + shifts[s]] += multipole[cBase + shifts[s + 1]] * mono[shifts[s + 2]];
+		}
+	}
+	private int octant(int i, double cx, double cy, double cz) {
+		return (px[i] >= cx ? 1 : 0) | (py[i] >= cy ? 2 : 0) | (dims == 3 && pz[i] >= cz ? 4 : 0);
+	}
+
+	private void interact(int a) {
+
+		if (from[a] == to[a]) return;
+		if (first[a] < 0) {
+			direct(a, a);
+			return;
+		}
+		int nChildren = 1 << dims;
+		for (int i = 0; i < nChildren; i++) {
+			interact(first[a] + i);
+			for (int j = i + 1; j < nChildren; j++) interact(first[a] + i, first[a] + j);
+		}
+	}
+	private void interact(int a, int b) {
+
+		if (from[a] == to[a] || from[b] == to[b]) return;
+		double dx = ox[a] - ox[b], dy = oy[a] - oy[b], dz = oz[a] - oz[b];
+		double d = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		if (radius[a] + radius[b] < theta * d) {
+			translate(a, b, dx, dy, dz);
+			return;
+		}
+
+		boolean leafA = first[a] < 0, leafB = first[b] < 0;
+		int nChildren = 1 << dims;
+		if (leafA && leafB)
+			direct(a, b);
+		else if (!leafA && (leafB || radius[a] >= radius[b]))
+			for (int i = 0; i < nChildren; i++) interact(first[a] + i, b);
+		else
+			for (int j = 0; j < nChildren; j++) interact(a, first[b] + j);
+	}
+
+	private void translate(int a, int b, double x, double y, double z) {
+
+		double r2 = x * x + y * y + z * z;
+		double r = Math.sqrt(r2), inv2 = 1 / r2;
+		int p = expansion;
+
+		double f = 1 / r;
+		for (int j = 0; j <= p; j++) {
+			derivatives[j * terms] = f;
+			f *= - (2 * j + 1) * inv2;
+		}
+		for (int c = 1; c < terms; c++) {
+			double axis = recAxis[c] == 0 ? x : recAxis[c] == 1 ? y : z;
+			int one = recOne[c], two = recTwo[c];
+			double k = recFactor[c];
+			for (int j = 0; j <= p - degree[c]; j++) {
+				int up = (j + 1) * terms;
+				derivatives[j * terms + c] = axis * derivatives[up + one] + (two < 0 ? 0 : k * derivatives[up + two]);
+			}
+		}
+
+		int aBase = a * terms, bBase = b * terms;
+		for (int s = 0; s < pairs.length; s += 3) {
+			double dv = derivatives[pairs[s + 2]];
+			local[aBase + pairs[s]] += multipole[bBase + pairs[s + 1]] * dv;
+			local[bBase + pairs[s]] += (degree[pairs[s + 2]] & 1) == 0 ? multipole[aBase + pairs[s + 1]] * dv : - multipole[aBase + pairs[s + 1]] * dv;
+		}
+	}
+
+	private void direct(int a, int b) {
+
+		for (int k = from[a]; k < to[a]; k++) {
+			int i = order[k];
+			double sx = 0, sy = 0, sz = 0, sp = 0;
+			for (int l = a == b ? k + 1 : from[b]; l < to[b]; l++) {
+				int j = order[l];
+				double ex = px[j] - px[i], ey = py[j] - py[i], ez = pz[j] - pz[i];
+				double r2 = ex * ex + ey * ey + ez * ez + eps2;
+				if (r2 == 0) continue;
+				double inv = 1 / Math.sqrt(r2), inv3 = inv * inv * inv;
+				double fi = q[j] * inv3, fj = q[i] * inv3;
+				sx += fi * ex;
+				sy += fi * ey;
+				sz += fi * ez;
+				sp += q[j] * inv;
+				ax[j] -= fj * ex;
+				ay[j] -= fj * ey;
+				az[j] -= fj * ez;
+				phi[j] += q[i] * inv;
+			}
+			ax[i] += sx;
+			ay[i] += sy;
+			az[i] += sz;
+			phi[i] += sp;
+		}
+	}
+
+	private void evaluate() {
+
+		int nChildren = 1 << dims;
+		for (int node = 0; node < nodes; node++) {
+			if (from[node] == to[node]) continue;
+			int base = node * terms;
+			if (first[node] >= 0) {
+				for (int c = 0; c < nChildren; c++) {
+					int child = first[node] + c;
+					if (from[child] == to[child]) continue;
+					monomials(ox[child] - ox[node], oy[child] - oy[node], oz[child] - oz[node]);
+					int cBase = child * terms;
+					for (int s = 0; s < pairs.length; s += 3)
+						local[cBase + pairs[s]] += local[base + pairs[s + 2]] * mono[pairs[s + 1]];
+				}
+				continue;
+			}
+			for (int k = from[node]; k < to[node]; k++) {
+				int i = order[k];
+				monomials(px[i] - ox[node], py[i] - oy[node], pz[i] - oz[node]);
+				double sx = 0, sy = 0, sz = 0, sp = 0;
+				for (int c = 0; c < terms; c++) {
+					double m = mono[c];
+					sp += local[base + c] * m;
+					if (degree[c] == expansion) continue;
+					int t = mt[c], u = mu[c], v = mv[c];
+					sx += local[base + index[t + 1][u][v]] * m;
+					sy += local[base + index[t][u + 1][v]] * m;
+					sz += local[base + index[t][u][v + 1]] * m;
+				}
+				ax[i] += sx;
+				ay[i] += sy;
+				az[i] += sz;
+				phi[i] += sp;
+			}
+		}
+	}
+
+	private void monomials(double x, double y, double z) {
+
+		mono[0] = 1;
+		for (int c = 1; c < terms; c++) {
+			int t = mt[c], u = mu[c], v = mv[c];
+			if (t > 0) mono[c] = mono[index[t - 1][u][v]] * x / t;
+			else if (u > 0) mono[c] = mono[index[t][u - 1][v]] * y / u;
+			else mono[c] = mono[index[t][u][v - 1]] * z / v;
+		}
+	}
+
+	@Override
+	public double[] acceleration(Particle p, double[] out) {
+
+		Integer i = lookup.get(p);
+		if (i == null) {
+			out[0] = out[1] = out[2] = 0;
+			return out;
+		}
+		return acceleration(i, out);
+	}
+	public double[] acceleration(int i, double[] out) {
+
+		out[0] = ax[i];
+		out[1] = ay[i];
+		out[2] = az[i];
+		return out;
+	}
+	public double potential(Particle p) {Integer i = lookup.get(p); return i == null ? 0 : phi[i];}
+	public double potential(int i) {return phi[i];}
+
+	public int getExpansionOrder() {return expansion;}
+	public int getSize() {return n;}
+	public int getSources() {return sources;}
+	public int getNodeCount() {return nodes;}
+	public int getDepth() {return depth;}
+	@Override
+	public boolean isValid() {return valid;}
+	@Override
+	public InverseSquare.SOLVER getType() {return InverseSquare.SOLVER.FMM;}
+}
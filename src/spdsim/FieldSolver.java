@@ -0,0 +1,9 @@
+package spdsim;
+
+public abstract class FieldSolver {
+
+	public abstract FieldSolver build(InverseSquare inter);
+	public abstract double[] acceleration(Particle p, double[] out);
+	public abstract boolean isValid();
+	public abstract InverseSquare.SOLVER getType();
+}
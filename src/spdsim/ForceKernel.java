@@ -0,0 +1,389 @@
+package spdsim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import processing.core.PVector;
+
+public abstract class ForceKernel {
+
+	private static final int GRAIN = 16;
+
+	private final int forces;
+	private final Particle[] handles;
+	private final int[] revisions;
+	private final Interaction[] interactions;
+	private final ExternalForce[] externals;
+	private final Spring[] joints;
+	private final int[][] interTargets, extTargets;
+	private final int[] jointEnds;
+	private final SpringNetwork network;
+	protected double[] accel;
+	private final ParticleBatch batch = new ParticleBatch();
+	private int[] slots = new int[0];
+	private PVector[] fields;
+	private float[] extAccel = new float[0];
+	private int[] loaded;
+
+	private ForceKernel(ParticleStore store, int forces) {
+
+		this.forces = forces;
+		int n = store.getSize();
+		handles = new Particle[n];
+		revisions = new int[n];
+		Map<Interaction, List<Integer>> inters = new IdentityHashMap<Interaction, List<Integer>>();
+		Map<ExternalForce, List<Integer>> exts = new IdentityHashMap<ExternalForce, List<Integer>>();
+		Map<Spring, Boolean> springs = new IdentityHashMap<Spring, Boolean>();
+		List<Interaction> interOrder = new ArrayList<Interaction>();
+		List<ExternalForce> extOrder = new ArrayList<ExternalForce>();
+		List<Spring> jointOrder = new ArrayList<Spring>();
+		for (int i = 0; i < n; i++) {
+			Particle p = store.getHandle(i);
+			handles[i] = p;
+			revisions[i] = p.getRevision();
+			if ((forces & Particle.INTERACTIONS) != 0)
+				for (Interaction inter : p.getInteractions()) {
+					if (!inters.containsKey(inter)) {inters.put(inter, new ArrayList<Integer>()); interOrder.add(inter);}
+					inters.get(inter).add(i);
+				}
+			if ((forces & Particle.EXTERNALS) != 0)
+				for (ExternalForce ext : p.getExternals()) {
+					if (!exts.containsKey(ext)) {exts.put(ext, new ArrayList<Integer>()); extOrder.add(ext);}
+					exts.get(ext).add(i);
+				}
+			if ((forces & Particle.JOINTS) != 0)
+				for (Spring s : p.getJoints())
+					if (springs.put(s, true) == null) jointOrder.add(s);
+		}
+
+		interactions = interOrder.toArray(new Interaction[0]);
+		interTargets = new int[interactions.length][];
+		for (int k = 0; k < interactions.length; k++) interTargets[k] = indices(inters.get(interactions[k]));
+		externals = extOrder.toArray(new ExternalForce[0]);
+		extTargets = new int[externals.length][];
+		for (int k = 0; k < externals.length; k++) {
+			extTargets[k] = indices(exts.get(externals[k]));
+			for (int j = 0; j < k; j++) if (Arrays.equals(extTargets[j], extTargets[k])) {extTargets[k] = extTargets[j]; break;}
+		}
+		List<Spring> bound = new ArrayList<Spring>(), rest = new ArrayList<Spring>();
+		for (Spring s : jointOrder) (SpringNetwork.isBound(store, s) ? bound : rest).add(s);
+		network = bound.isEmpty() ? null : new SpringNetwork(store, bound);
+		joints = rest.toArray(new Spring[0]);
+		jointEnds = new int[2 * joints.length];
+		for (int k = 0; k < joints.length; k++) {
+			jointEnds[2 * k] = end(store, joints[k].getFirst(), joints[k]);
+			jointEnds[2 * k + 1] = end(store, joints[k].getSecond(), joints[k]);
+		}
+		accel = new double[3 * n];
+	}
+	private static int[] indices(List<Integer> list) {
+		int[] result = new int[list.size()];
+		for (int i = 0; i < result.length; i++) result[i] = list.get(i);
+		return result;
+	}
+	private static int end(ParticleStore store, Particle p, Spring s) {return p != null && p.getStore() == store && p.isIn(s) ? p.getIndex() : - 1;}
+
+	/** Returns null when single and double precision particles are mixed, which the per-particle path handles instead. */
+	public static ForceKernel compile(ParticleStore store, int nDim, int forces) {
+
+		int n = store.getSize();
+		boolean exact = n > 0 && store.getHandle(0).isDoublePrecision();
+		for (int i = 1; i < n; i++) if (store.getHandle(i).isDoublePrecision() != exact) return null;
+		if (exact) return nDim == 4 ? new PlanarExact(store, forces) : new SpatialExact(store, forces);
+		return nDim == 4 ? new PlanarSingle(store, forces) : new SpatialSingle(store, forces);
+	}
+
+	public boolean matches(ParticleStore store, int nDim, int forces) {
+
+		if (forces != this.forces || nDim != getDimensions() || store.getSize() != handles.length) return false;
+		boolean exact = isDoublePrecision();
+		for (int i = 0; i < handles.length; i++)
+			if (store.getHandle(i) != handles[i] || handles[i].getRevision() != revisions[i] || handles[i].isDoublePrecision() != exact) return false;
+		return network == null || network.matches(store);
+	}
+
+	public ForceKernel evaluate(ParticleStore store, double h, double[] out, ForkJoinPool pool, int threads) {
+
+		Arrays.fill(accel, 0);
+		for (int k = 0; k < interactions.length; k++) {
+			Interaction inter = interactions[k];
+			int[] targets = interTargets[k];
+			double[] buf = inter.getScattered(store);
+			if (buf != null) {
+				for (int i : targets)
+					if (store.isDynamic(i)) {
+						accel[3 * i] += buf[3 * i];
+						accel[3 * i + 1] += buf[3 * i + 1];
+						accel[3 * i + 2] += buf[3 * i + 2];
+					}
+			} else if (pool != null && threads > 1 && targets.length >= 2 * GRAIN)
+				pool.invoke(new Gather(store, inter, targets, 0, targets.length, Math.max(GRAIN, targets.length / (8 * threads))));
+			else
+				interaction(store, inter, targets, 0, targets.length);
+		}
+
+		loaded = null;
+		for (int k = 0; k < externals.length; k++) external(store, k);
+
+		if (network != null) network.evaluate(store, accel);
+		joints(store, joints, jointEnds);
+
+		derivative(store, h, out);
+		return this;
+	}
+	private void external(ParticleStore store, int k) {
+
+		ExternalForce ext = externals[k];
+		int[] targets = extTargets[k];
+
+		if (ext.isUniform()) {
+			uniform(store, ext, targets);
+			return;
+		}
+		if (isDoublePrecision() || !ext.isBatched() && !ext.isPositional()) {
+			external(store, ext, targets);
+			return;
+		}
+		if (!ext.isBatched()) {
+			positional(store, ext, targets);
+			return;
+		}
+
+		if (loaded != targets) {batch.load(store, targets); loaded = targets;}
+		if (extAccel.length < 3 * targets.length) extAccel = new float[3 * targets.length];
+		Arrays.fill(extAccel, 0, 3 * targets.length, 0);
+		ext.accelerations(batch, 0, targets.length, extAccel);
+		for (int t = 0; t < targets.length; t++) {
+			int i = targets[t];
+			if (!store.isDynamic(i)) continue;
+			accel[3 * i] += extAccel[3 * t];
+			accel[3 * i + 1] += extAccel[3 * t + 1];
+			accel[3 * i + 2] += extAccel[3 * t + 2];
+		}
+	}
+	private void positional(ParticleStore store, ExternalForce ext, int[] targets) {
+
+		int mask = Integer.highestOneBit(2 * targets.length) * 2 - 1, shift = Integer.numberOfLeadingZeros(mask);
+		if (slots.length <= mask) {slots = new int[mask + 1]; fields = new PVector[mask + 1];}
+		Arrays.fill(slots, 0, mask + 1, - 1);
+		for (int i : targets) {
+			if (!store.isDynamic(i)) continue;
+			PVector pos = store.getHandle(i).getPos(), other;
+			int h = (31 * Float.floatToIntBits(pos.x) + Float.floatToIntBits(pos.y)) * 31 + Float.floatToIntBits(pos.z);
+			int s = (h * 0x9E3779B9) >>> shift, j;
+			while ((j = slots[s]) >= 0 && ((other = store.getHandle(j).getPos()).x != pos.x || other.y != pos.y || other.z != pos.z)) s = (s + 1) & mask;
+			if (j < 0) {slots[s] = i; fields[s] = ext.accelField(pos);}
+			add(i, fields[s]);
+		}
+	}
+	protected void add(int i, PVector a) {accel[3 * i] += a.x; accel[3 * i + 1] += a.y; accel[3 * i + 2] += a.z;}
+	protected void add(int i, PVectorD a) {accel[3 * i] += a.x; accel[3 * i + 1] += a.y; accel[3 * i + 2] += a.z;}
+	protected void add(int i, double[] a) {accel[3 * i] += a[0]; accel[3 * i + 1] += a[1]; accel[3 * i + 2] += a[2];}
+
+	protected abstract void interaction(ParticleStore store, Interaction inter, int[] targets, int from, int to);
+	protected abstract void uniform(ParticleStore store, ExternalForce ext, int[] targets);
+	protected abstract void external(ParticleStore store, ExternalForce ext, int[] targets);
+	protected abstract void joints(ParticleStore store, Spring[] joints, int[] ends);
+	public abstract boolean isDoublePrecision();
+	protected abstract int getDimensions();
+	protected abstract void derivative(ParticleStore store, double h, double[] out);
+
+	public int getForces() {return forces;}
+	public int getSize() {return handles.length;}
+	public Interaction[] getInteractions() {return interactions;}
+	public ExternalForce[] getExternals() {return externals;}
+	public Spring[] getJoints() {return joints;}
+	public SpringNetwork getNetwork() {return network;}
+
+	private abstract static class Single extends ForceKernel {
+
+		Single(ParticleStore store, int forces) {super(store, forces);}
+
+		@Override
+		public boolean isDoublePrecision() {return false;}
+		@Override
+		protected void interaction(ParticleStore store, Interaction inter, int[] targets, int from, int to) {
+
+			double[] f = new double[3];
+			for (int t = from; t < to; t++) {
+				int i = targets[t];
+				if (!store.isDynamic(i)) continue;
+				Particle p = store.getHandle(i);
+				if (inter.accumulate(p, f)) {add(i, f); continue;}
+				for (Particle o : inter.getParticles())
+					if (o != p && !inter.excludes(o, p) && inter.within(o, p)) add(i, inter.acceleration(inter.image(o, p), p));
+			}
+		}
+		@Override
+		protected void uniform(ParticleStore store, ExternalForce ext, int[] targets) {
+
+			PVector a = ext.acceleration(store.getHandle(targets[0]));
+			for (int i : targets) if (store.isDynamic(i)) add(i, a);
+		}
+		@Override
+		protected void external(ParticleStore store, ExternalForce ext, int[] targets) {
+			for (int i : targets) if (store.isDynamic(i)) add(i, ext.acceleration(store.getHandle(i)));
+		}
+		@Override
+		protected void joints(ParticleStore store, Spring[] joints, int[] ends) {
+			for (int k = 0; k < joints.length; k++)
+				for (int e = 0; e < 2; e++) {
+					int i = ends[2 * k + e];
+					if (i >= 0 && store.isDynamic(i)) add(i, joints[k].acceleration(store.getHandle(i)));
+				}
+		}
+	}
+
+	private abstract static class Exact extends ForceKernel {
+
+		Exact(ParticleStore store, int forces) {super(store, forces);}
+
+		@Override
+		public boolean isDoublePrecision() {return true;}
+		@Override
+		protected void interaction(ParticleStore store, Interaction inter, int[] targets, int from, int to) {
+
+			double[] f = new double[3];
+			for (int t = from; t < to; t++) {
+				int i = targets[t];
+				if (!store.isDynamic(i)) continue;
+				Particle p = store.getHandle(i);
+				if (inter.accumulate(p, f)) {add(i, f); continue;}
+				for (Particle o : inter.getParticles())
+					if (o != p && !inter.excludes(o, p) && inter.within(o, p)) add(i, inter.accelerationD(inter.image(o, p), p));
+			}
+		}
+		@Override
+		protected void uniform(ParticleStore store, ExternalForce ext, int[] targets) {
+
+			PVectorD a = ext.accelerationD(store.getHandle(targets[0]));
+			for (int i : targets) if (store.isDynamic(i)) add(i, a);
+		}
+		@Override
+		protected void external(ParticleStore store, ExternalForce ext, int[] targets) {
+			for (int i : targets) if (store.isDynamic(i)) add(i, ext.accelerationD(store.getHandle(i)));
+		}
+		@Override
+		protected void joints(ParticleStore store, Spring[] joints, int[] ends) {
+			for (int k = 0; k < joints.length; k++)
+				for (int e = 0; e < 2; e++) {
+					int i = ends[2 * k + e];
+					if (i >= 0 && store.isDynamic(i)) add(i, joints[k].accelerationD(store.getHandle(i)));
+				}
+		}
+	}
+
+	private static final class PlanarSingle extends Single {
+
+		PlanarSingle(ParticleStore store, int forces) {super(store, forces);}
+
+		@Override
+		protected int getDimensions() {return 4;}
+		@Override
+		protected void derivative(ParticleStore store, double h, double[] out) {
+			for (int i = 0; i < store.getSize(); i++) {
+				if (!store.isDynamic(i)) continue;
+				PVector v = store.getHandle(i).getVel();
+				out[4 * i] = v.x * h;
+				out[4 * i + 1] = v.y * h;
+				out[4 * i + 2] = accel[3 * i] * h;
+				out[4 * i + 3] = accel[3 * i + 1] * h;
+			}
+		}
+	}
+
+	private static final class SpatialSingle extends Single {
+
+		SpatialSingle(ParticleStore store, int forces) {super(store, forces);}
+
+		@Override
+		protected int getDimensions() {return 6;}
+		@Override
+		protected void derivative(ParticleStore store, double h, double[] out) {
+			for (int i = 0; i < store.getSize(); i++) {
+				if (!store.isDynamic(i)) continue;
+				PVector v = store.getHandle(i).getVel();
+				out[6 * i] = v.x * h;
+				out[6 * i + 1] = v.y * h;
+				out[6 * i + 2] = v.z * h;
+				out[6 * i + 3] = accel[3 * i] * h;
+				out[6 * i + 4] = accel[3 * i + 1] * h;
+				out[6 * i + 5] = accel[3 * i + 2] * h;
+			}
+		}
+	}
+
+	private static final class PlanarExact extends Exact {
+
+		PlanarExact(ParticleStore store, int forces) {super(store, forces);}
+
+		@Override
+		protected int getDimensions() {return 4;}
+		@Override
+		protected void derivative(ParticleStore store, double h, double[] out) {
+			for (int i = 0; i < store.getSize(); i++) {
+				if (!store.isDynamic(i)) continue;
+				PVectorD v = store.getHandle(i).getVelD();
+				out[4 * i] = v.x * h;
+				out[4 * i + 1] = v.y * h;
+				out[4 * i + 2] = accel[3 * i] * h;
+				out[4 * i + 3] = accel[3 * i + 1] * h;
+			}
+		}
+	}
+
+	private static final class SpatialExact extends Exact {
+
+		SpatialExact(ParticleStore store, int forces) {super(store, forces);}
+
+		@Override
+		protected int getDimensions() {return 6;}
+		@Override
+		protected void derivative(ParticleStore store, double h, double[] out) {
+			for (int i = 0; i < store.getSize(); i++) {
+				if (!store.isDynamic(i)) continue;
+				PVectorD v = store.getHandle(i).getVelD();
+				out[6 * i] = v.x * h;
+				out[6 * i + 1] = v.y * h;
+				out[6 * i + 2] = v.z * h;
+				out[6 * i + 3] = accel[3 * i] * h;
+				out[6 * i + 4] = accel[3 * i + 1] * h;
+				out[6 * i + 5] = accel[3 * i + 2] * h;
+			}
+		}
+	}
+
+	private final class Gather extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ParticleStore store;
+		private final Interaction inter;
+		private final int[] targets;
+		private final int from, to, grain;
+
+		Gather(ParticleStore store, Interaction inter, int[] targets, int from, int to, int grain) {
+			this.store = store;
+			this.inter = inter;
+			this.targets = targets;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				interaction(store, inter, targets, from, to);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Gather(store, inter, targets, from, mid, grain), new Gather(store, inter, targets, mid, to, grain));
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package spdsim;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public abstract class ForceLaw {
+
+	private static final String[] VARIABLES = {"r", "m1", "m2", "q1", "q2"};
+	private static final String[] FUNCTIONS = {"sqrt", "cbrt", "exp", "log", "sin", "cos", "tan", "tanh", "abs", "pow", "min", "max"};
+	private static final MethodType LAW = MethodType.methodType(double.class, double.class, double.class, double.class, double.class, double.class);
+	private static final int[] TWICE = {0, 1, 2, 3, 4, 0, 1, 2, 3, 4};
+	private static final Map<String, WeakReference<ForceLaw>> cache = new HashMap<String, WeakReference<ForceLaw>>();
+
+	private String force, potential;
+
+	protected ForceLaw() {}
+
+	public abstract double force(double r, double m1, double m2, double q1, double q2);
+	public abstract double potential(double r, double m1, double m2, double q1, double q2);
+
+	public void accelerations(ParticleBatch targets, int from, int to, ParticleBatch sources, float[] out) {
+		pairs(targets.getX(), targets.getY(), targets.getZ(), targets.getMass(), targets.getCharge(), from, to,
+				sources.getX(), sources.getY(), sources.getZ(), sources.getMass(), sources.getCharge(), sources.getSize(), targets == sources, out);
+	}
+	protected void pairs(float[] x, float[] y, float[] z, float[] m, float[] q, int from, int to,
+			float[] sx, float[] sy, float[] sz, float[] sm, float[] sq, int n, boolean self, float[] out) {
+
+		for (int i = from; i < to; i++) {
+			double ax = 0, ay = 0, az = 0, mi = m[i] == 0 ? 1 : m[i];
+			for (int j = 0; j < n; j++) {
+				if (self && j == i) continue;
+				double dx = x[i] - sx[j], dy = y[i] - sy[j], dz = z[i] - sz[j], r = Math.sqrt(dx * dx + dy * dy + dz * dz);
+				if (r == 0) continue;
+				double f = force(r, sm[j], mi, sq[j], q[i]) / r;
+				ax += f * dx;
+				ay += f * dy;
+				az += f * dz;
+			}
+			out[3 * i] += ax / mi;
+			out[3 * i + 1] += ay / mi;
+			out[3 * i + 2] += az / mi;
+		}
+	}
+
+	public static ForceLaw compile(String force, String potential, Map<String, Double> parameters) {
+
+		Map<String, Double> params = parameters == null ? Collections.<String, Double>emptyMap() : parameters;
+		String key = force + "\n" + potential + "\n" + new TreeMap<String, Double>(params);
+		ForceLaw law;
+		synchronized (cache) {
+			WeakReference<ForceLaw> ref = cache.get(key);
+			law = ref == null ? null : ref.get();
+		}
+		if (law != null) return law;
+
+		Node f = new Parser(force, params).parse(), u = new Parser(potential, params).parse();
+		try {
+			law = new Compiled(handle(f), handle(u));
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException("Could not compile force law \"" + force + "\": " + e, e);
+		}
+		law.force = force;
+		law.potential = potential;
+		synchronized (cache) {
+			for (Iterator<WeakReference<ForceLaw>> it = cache.values().iterator(); it.hasNext(); )
+				if (it.next().get() == null) it.remove();
+			cache.put(key, new WeakReference<ForceLaw>(law));
+		}
+		return law;
+	}
+	public static ForceLaw compile(String force, String potential) {return compile(force, potential, null);}
+
+	public String getForce() {return force;}
+	public String getPotential() {return potential;}
+	@Override
+	public String toString() {return "F(r) = " + force + ", U(r) = " + potential;}
+
+	private static final class Compiled extends ForceLaw {
+
+		private final MethodHandle force, potential;
+
+		Compiled(MethodHandle force, MethodHandle potential) {this.force = force; this.potential = potential;}
+
+		@Override
+		public double force(double r, double m1, double m2, double q1, double q2) {
+			try {return (double) force.invokeExact(r, m1, m2, q1, q2);}
+			catch (Throwable t) {throw rethrow(t);}
+		}
+		@Override
+		public double potential(double r, double m1, double m2, double q1, double q2) {
+			try {return (double) potential.invokeExact(r, m1, m2, q1, q2);}
+			catch (Throwable t) {throw rethrow(t);}
+		}
+		private static RuntimeException rethrow(Throwable t) {
+			if (t instanceof Error) throw (Error) t;
+			return t instanceof RuntimeException ? (RuntimeException) t : new RuntimeException(t);
+		}
+	}
+
+	private static MethodHandle handle(Node n) throws ReflectiveOperationException {
+		switch (n.op) {
+		case '#':
+			return MethodHandles.dropArguments(MethodHandles.constant(double.class, n.value), 0, LAW.parameterList());
+		case '$':
+			for (int i = 0; ; i++)
+				if (VARIABLES[i].equals(n.name)) return MethodHandles.permuteArguments(MethodHandles.identity(double.class), LAW, i);
+		case '~':
+			return MethodHandles.filterReturnValue(handle(n.args[0]), operator("negate", 1));
+		case '^':
+			double e = n.args[1].value;
+			if (n.args[1].isConstant() && Math.abs(e) <= 16 && 2 * e == Math.rint(2 * e))
+				return MethodHandles.filterReturnValue(handle(n.args[0]), MethodHandles.insertArguments(operator("power", 2), 1, e));
+			return combine(math("pow", 2), n.args);
+		case 'f':
+			return n.args.length == 1 ? MethodHandles.filterReturnValue(handle(n.args[0]), math(n.name, 1)) : combine(math(n.name, 2), n.args);
+		}
+		return combine(operator(n.op == '+' ? "add" : n.op == '-' ? "subtract" : n.op == '*' ? "multiply" : "divide", 2), n.args);
+	}
+	private static MethodHandle combine(MethodHandle op, Node[] args) throws ReflectiveOperationException {
+		MethodHandle h = MethodHandles.collectArguments(MethodHandles.collectArguments(op, 1, handle(args[1])), 0, handle(args[0]));
+		return MethodHandles.permuteArguments(h, LAW, TWICE);
+	}
+	private static MethodHandle operator(String name, int arity) throws ReflectiveOperationException {
+		return MethodHandles.lookup().findStatic(ForceLaw.class, name, arity == 1 ? MethodType.methodType(double.class, double.class) : MethodType.methodType(double.class, double.class, double.class));
+	}
+	private static MethodHandle math(String name, int arity) throws ReflectiveOperationException {
+		return MethodHandles.lookup().findStatic(Math.class, name, arity == 1 ? MethodType.methodType(double.class, double.class) : MethodType.methodType(double.class, double.class, double.class));
+	}
+	private static double add(double a, double b) {return a + b;}
+	private static double subtract(double a, double b) {return a - b;}
+	private static double multiply(double a, double b) {return a * b;}
+	private static double divide(double a, double b) {return a / b;}
+	private static double negate(double a) {return - a;}
+	private static double power(double x, double e) {
+		int n = (int) Math.floor(Math.abs(e));
+		double result = 1;
+		for (int i = 0; i < n; i++) result *= x;
+		if (Math.abs(e) != n) result *= Math.sqrt(x);
+		return e < 0 ? 1 / result : result;
+	}
+
+	private static final class Node {
+
+		final char op;
+		final double value;
+		final String name;
+		final Node[] args;
+
+		Node(double value) {op = '#'; this.value = value; name = null; args = new Node[0];}
+		Node(String name) {op = '$'; value = 0; this.name = name; args = new Node[0];}
+		Node(char op, String name, Node... args) {this.op = op; value = 0; this.name = name; this.args = args;}
+
+		boolean isConstant() {return op == '#';}
+	}
+
+	private static final class Parser {
+
+		private final String text;
+		private final Map<String, Double> params;
+		private int pos;
+
+		Parser(String text, Map<String, Double> params) {this.text = text; this.params = params;}
+
+		Node parse() {
+			Node n = sum();
+			skip();
+			if (pos < text.length()) throw error("unexpected '" + text.charAt(pos) + "'");
+			return n;
+		}
+		private Node sum() {
+			Node n = product();
+			for (char c = peek(); c == '+' || c == '-'; c = peek()) {pos++; n = fold(c, n, product());}
+			return n;
+		}
+		private Node product() {
+			Node n = unary();
+			for (char c = peek(); c == '*' || c == '/'; c = peek()) {pos++; n = fold(c, n, unary());}
+			return n;
+		}
+		private Node unary() {
+			if (peek() == '-') {pos++; return fold('~', unary());}
+			if (peek() == '+') {pos++; return unary();}
+			Node n = atom();
+			if (peek() == '^') {pos++; return fold('^', n, unary());}
+			return n;
+		}
+		private Node atom() {
+			char c = peek();
+			if (c == '(') {
+				pos++;
+				Node n = sum();
+				expect(')');
+				return n;
+			}
+			if (Character.isDigit(c) || c == '.') {
+				int from = pos;
+				while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) pos++;
+				if (pos < text.length() && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+					pos++;
+					if (pos < text.length() && (text.charAt(pos) == '+' || text.charAt(pos) == '-')) pos++;
+					while (pos < text.length() && Character.isDigit(text.charAt(pos))) pos++;
+				}
+				try {return new Node(Double.parseDouble(text.substring(from, pos)));}
+				catch (NumberFormatException e) {throw error("bad number " + text.substring(from, pos));}
+			}
+			if (Character.isLetter(c) || c == '_') {
+				int from = pos;
+				while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_')) pos++;
+				String id = text.substring(from, pos);
+				if (peek() == '(') {
+					pos++;
+					List<Node> args = new ArrayList<Node>();
+					if (peek() != ')')
+						do args.add(sum()); while (accept(','));
+					expect(')');
+					return call(id, args.toArray(new Node[0]));
+				}
+				for (String v : VARIABLES) if (v.equals(id)) return new Node(id);
+				if (params.containsKey(id)) return new Node(params.get(id));
+				if (id.equals("pi")) return new Node(Math.PI);
+				if (id.equals("e")) return new Node(Math.E);
+				throw error("unknown variable " + id);
+			}
+			throw error(pos < text.length() ? "unexpected '" + c + "'" : "unexpected end");
+		}
+		private Node call(String id, Node[] args) {
+			boolean known = false;
+			for (String f : FUNCTIONS) known |= f.equals(id);
+			if (!known) throw error("unknown function " + id);
+			int arity = id.equals("pow") || id.equals("min") || id.equals("max") ? 2 : 1;
+			if (args.length != arity) throw error(id + " takes " + arity + " argument(s)");
+			if (id.equals("pow")) return fold('^', args[0], args[1]);
+			Node n = new Node('f', id, args);
+			for (Node a : args) if (!a.isConstant()) return n;
+			return new Node(evaluate(n));
+		}
+
+		private Node fold(char op, Node... args) {
+			Node n = new Node(op, null, args);
+			for (Node a : args) if (!a.isConstant()) return n;
+			return new Node(evaluate(n));
+		}
+		private static double evaluate(Node n) {
+			double a = n.args.length > 0 ? n.args[0].value : 0, b = n.args.length > 1 ? n.args[1].value : 0;
+			switch (n.op) {
+			case '+': return a + b;
+			case '-': return a - b;
+			case '*': return a * b;
+			case '/': return a / b;
+			case '~': return - a;
+			case '^': return Math.pow(a, b);
+			}
+			switch (n.name) {
+			case "sqrt": return Math.sqrt(a);
+			case "cbrt": return Math.cbrt(a);
+			case "exp": return Math.exp(a);
+			case "log": return Math.log(a);
+			case "sin": return Math.sin(a);
+			case "cos": return Math.cos(a);
+			case "tan": return Math.tan(a);
+			case "tanh": return Math.tanh(a);
+			case "abs": return Math.abs(a);
+			case "min": return Math.min(a, b);
+			default: return Math.max(a, b);
+			}
+		}
+
+		private void skip() {while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;}
+		private char peek() {skip(); return pos < text.length() ? text.charAt(pos) : 0;}
+		private boolean accept(char c) {if (peek() != c) return false; pos++; return true;}
+		private void expect(char c) {if (!accept(c)) throw error("expected '" + c + "'");}
+		private RuntimeException error(String msg) {return new RuntimeException("Force law \"" + text + "\": " + msg + " at " + pos);}
+	}
+}
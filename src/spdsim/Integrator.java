@@ -1,7 +1,10 @@
 package spdsim;
 
 import java.io.Serializable;
-import tensors.Float.*;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import processing.core.PVector;
 
 public class Integrator implements Serializable {
 	
@@ -9,28 +12,85 @@ public class Integrator implements Serializable {
 	
 	public enum METHOD{
 		
-		EULER,
-		RK4,
-		RK6,
-		RKF45,
-		CK45,
-		DOPRI45;
+		EULER(Tableau.EULER),
+		RK4(Tableau.RK4),
+		RK6(Tableau.RK6),
+		RKF45(Tableau.RKF45),
+		CK45(Tableau.CK45),
+		DOPRI45(Tableau.DOPRI45),
+		VERLET(Composition.VERLET),
+		LEAPFROG(Composition.LEAPFROG),
+		YOSHIDA4(Composition.YOSHIDA4),
+		RESPA(),
+		BLOCK();
+		
+		private final Tableau tableau;
+		private final Composition composition;
+		
+		METHOD(Tableau tableau) {this.tableau = tableau; composition = null;}
+		METHOD(Composition composition) {this.composition = composition; tableau = null;}
+		METHOD() {tableau = null; composition = null;}
+		public Tableau getTableau() {return tableau;}
+		public Composition getComposition() {return composition;}
+		public boolean isSymplectic() {return tableau == null;}
 	}
 	
+	public enum EVALUATION {SEQUENTIAL, SYNCHRONOUS;}
+	
+	private static final int GRAIN = 16;
+	
 	private Environment ENV;
 	private METHOD method;
-	private float dt;
+	private Tableau tableau;
+	private Composition composition;
+	private EVALUATION evaluation;
+	private transient double[][] stages, sysStages;
+	private transient double[] K, derivs, cacheState;
+	private transient double[][] levelAccel;
+	private transient int[] levelForces, levelSteps;
+	private transient boolean[] levelValid;
+	private transient int[] levels, due;
+	private transient double[] prevAccel, denseState;
+	private transient double[] denseWeights;
+	private transient int fsalStage, denseDim;
+	private transient float fsalDt, denseSign;
+	private transient boolean cached, fsalReady, denseReady;
+	private transient ForceKernel[] kernels;
+	private int extSubsteps, jointSubsteps, blockLevels;
+	private float blockAccuracy;
+	private float dt, lastDt, minDt, maxDt;
+	private double time;
 	private float error, cumError;
+	private float absTol, relTol, errNorm, prevErrNorm;
+	private double errSum;
+	private int errCount, rejected;
 		
-	private boolean computeError;
+	private boolean computeError, adaptive, compiled;
 	
 	public Integrator(float dt, Environment ENV) {
 		method = METHOD.RK4;
+		tableau = method.getTableau();
+		evaluation = EVALUATION.SEQUENTIAL;
+		compiled = true;
 		this.dt = dt;
 		this.ENV = ENV;
+		lastDt = dt;
+		minDt = 0.0f;
+		maxDt = Float.MAX_VALUE;
+		time = 0.0f;
 		error = 0.0f;
 		cumError = 0.0f;
+		absTol = 1e-4f;
+		relTol = 1e-4f;
+		errNorm = 0.0f;
+		prevErrNorm = 1e-4f;
+		rejected = 0;
+		extSubsteps = 1;
+		jointSubsteps = 1;
+		blockLevels = 8;
+		blockAccuracy = 0.02f;
 		computeError = true;
+		adaptive = false;
 	}
 	
 	private Integrator update(boolean forward) {
@@ -41,315 +101,607 @@ public class Integrator implements Serializable {
 		else
 			nDim = 6;
 		
-		for (Particle p : ENV.getParticles()) p.getRecord().saveIntegPos();
-		if (method == METHOD.EULER)
-			euler(nDim, forward);
-		else if (method == METHOD.RK4)
-			RK4(nDim, forward);
-		else if (method == METHOD.RK6)
-			RK6(nDim, forward);
-		else if (method == METHOD.RKF45)
-			RKF45(nDim, forward);
-		else if (method == METHOD.CK45)
-			CK45(nDim, forward);
-		else
-			DOPRI45(nDim, forward);
-		return this;
+		ParticleStore store = ENV.loadStore();
+		for (int i = 0; i < store.getSize(); i++) store.getHandle(i).getRecord().saveIntegPos();
+		if (!isAdaptive())
+			return step(store, nDim, forward);
+		
+		while (true) {
+			step(store, nDim, forward);
+			errNorm = errCount > 0 ? (float) Math.sqrt(errSum / errCount) : 0;
+			if (Float.isNaN(errNorm)) throw new RuntimeException("Step error is not a number, the simulation has diverged");
+			
+			if (errNorm <= 1 || dt <= minDt) {
+				dt = clampDt(dt * controlFactor(errNorm, true));
+				prevErrNorm = Math.max(errNorm, 1e-4f);
+				return this;
+			}
+			
+			store.commit();
+			if (fsalReady) {fsalStage = 0; saveCache(store, nDim);}
+			denseReady = false;
+			time -= forward ? lastDt : - lastDt;
+			rejected++;
+			dt = clampDt(dt * Math.min(1, controlFactor(errNorm, false)));
+		}
 	}
 	
 	public Integrator forward() {return update(true); }
 	public Integrator backward() {return update(false);}
 	
-	private Integrator euler(int nDim, boolean forward) {
+	private Integrator step(ParticleStore store, int nDim, boolean forward) {
+		errSum = 0;
+		errCount = 0;
+		denseReady = false;
+		lastDt = dt;
+		time += forward ? dt : - dt;
+		if (composition != null)
+			return integrateSymplectic(store, nDim, forward);
+		if (method == METHOD.RESPA)
+			return integrateRespa(store, nDim, forward);
+		if (method == METHOD.BLOCK)
+			return integrateBlock(store, nDim, forward);
+		if (evaluation == EVALUATION.SYNCHRONOUS || isAdaptive())
+			return integrateSynchronous(store, nDim, forward);
+		return integrate(store, nDim, forward);
+	}
+	
+	private float controlFactor(float err, boolean accepted) {
 		
-		for (Particle p : ENV.getParticles())
-			if (p.isDynamic()) {
-				p.setKUnsafe(p.computeK(dt, forward, new Vector(nDim)));
+		float alpha = 0.7f / (tableau.getOrder() + 1), beta = 0.4f / (tableau.getOrder() + 1);
+		if (err == 0) return 5;
+		float factor = 0.9f * (float) Math.pow(err, - alpha);
+		if (accepted) factor *= (float) Math.pow(prevErrNorm, beta);
+		return Math.max(0.2f, Math.min(5, factor));
+	}
+	private float clampDt(float val) {return Math.max(Math.max(minDt, Float.MIN_NORMAL), Math.min(maxDt, val));}
+	
+	private Integrator ensureBuffers() {
+		if (stages == null || stages.length < tableau.getStages()) stages = new double[tableau.getStages()][6];
+		if (K == null) K = new double[6];
+		return this;
+	}
+	private Integrator ensureBuffers(int length) {
+		ensureBuffers();
+		if (sysStages == null || sysStages.length < tableau.getStages() || sysStages[0].length < length)
+			sysStages = new double[tableau.getStages()][Math.max(length, sysStages == null ? 0 : sysStages[0].length)];
+		return this;
+	}
+	private boolean needsError() {return tableau != null && tableau.hasError() && (computeError || adaptive);}
+	
+	private static double component(ParticleStore store, int i, int nDim, int c) {
+		if (nDim == 4) return c == 0 ? store.getX()[i] : c == 1 ? store.getY()[i] : c == 2 ? store.getVX()[i] : store.getVY()[i];
+		return c == 0 ? store.getX()[i] : c == 1 ? store.getY()[i] : c == 2 ? store.getZ()[i] :
+			c == 3 ? store.getVX()[i] : c == 4 ? store.getVY()[i] : store.getVZ()[i];
+	}
+	
+	private Integrator estimateError(ParticleStore store, int i, int nDim, double[][] buf, int off, int nStages, double sign) {
+		
+		double[] e = tableau.getErrorWeights();
+		double[] k = store.getHandle(i).getK();
+		double norm = 0;
+		for (int c = 0; c < nDim; c++) {
+			double diff = 0;
+			for (int j = 0; j < nStages; j++) diff += e[j] * buf[j][off + c];
+			norm += diff * diff;
+			
+			double y0 = component(store, i, nDim, c);
+			double scale = absTol + relTol * Math.max(Math.abs(y0), Math.abs(y0 + sign * k[c]));
+			errSum += (diff / scale) * (diff / scale);
+			errCount++;
+		}
+		error = (float) Math.sqrt(norm);
+		cumError += error;
+		return this;
+	}
+	
+	private Integrator integrate(ParticleStore store, int nDim, boolean forward) {
+		
+		ensureBuffers();
+		prepare();
+		boolean err = needsError();
+		int nStages = err ? tableau.getStages() : tableau.getSolutionStages();
+		double[] b = tableau.getWeights();
+		
+		for (int i = 0; i < store.getSize(); i++)
+			if (store.isDynamic(i)) {
+				Particle p = store.getHandle(i);
+				
+				for (int s = 0; s < nStages; s++) {
+					double[] row = tableau.getRow(s);
+					for (int c = 0; c < nDim; c++) K[c] = 0;
+					for (int j = 0; j < row.length; j++)
+						if (row[j] != 0)
+							for (int c = 0; c < nDim; c++)
+								K[c] += row[j] * stages[j][c];
+					p.computeK(dt, forward, K, stages[s]);
+				}
+				
+				double[] k = p.getK();
+				for (int c = 0; c < nDim; c++) k[c] = 0;
+				for (int j = 0; j < nStages; j++)
+					if (b[j] != 0)
+						for (int c = 0; c < nDim; c++)
+							k[c] += b[j] * stages[j][c];
+				
 				if (forward) p.forward(); else p.backward();
+				if (err) estimateError(store, i, nDim, stages, 0, nStages, forward ? 1 : - 1);
 			}
 		return this;
 	}
 	
-	private Integrator RK4(int nDim, boolean forward) {
+	private Integrator place(ParticleStore store, int i, int nDim, double sign, double[] K) {
 		
-		for (Particle p : ENV.getParticles())
-			if (p.isDynamic()) {
-				Vector k1, k2, k3, k4;
-	
-				k1 = p.computeK(dt, forward, new Vector(nDim));
-				k2 = p.computeK(dt, forward, Vector.div(k1, 2));
-				k3 = p.computeK(dt, forward, Vector.div(k2, 2));
-				k4 = p.computeK(dt, forward, k3);
+		Particle p = store.getHandle(i);
+		double[] x = store.getX(), y = store.getY(), z = store.getZ(), vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+		if (nDim == 4)
+			p.setState(x[i] + sign * K[0], y[i] + sign * K[1], z[i], vx[i] + sign * K[2], vy[i] + sign * K[3], vz[i]);
+		else
+			p.setState(x[i] + sign * K[0], y[i] + sign * K[1], z[i] + sign * K[2], vx[i] + sign * K[3], vy[i] + sign * K[4], vz[i] + sign * K[5]);
+		return this;
+	}
 	
-				k2.mult(2);
-				k3.mult(2);
+	private Integrator evaluate(ParticleStore store, int nDim, double h, double[] out) {return evaluate(store, nDim, h, out, Particle.ALL);}
+	private Integrator evaluate(ParticleStore store, int nDim, double h, double[] out, int forces) {return evaluate(store, nDim, h, out, forces, null, store.getSize());}
+	private Integrator evaluate(ParticleStore store, int nDim, double h, double[] out, int forces, int[] indices, int n) {
+		
+		int threads = ENV.getThreads();
+		ForkJoinPool pool = threads > 1 ? ENV.getPool() : null;
+		ForceKernel kernel = compiled && indices == null ? kernel(store, nDim, forces) : null;
+		release();
+		try {
+			if ((forces & Particle.INTERACTIONS) != 0) {
+				prepare();
+				if (indices == null)
+					for (Interaction inter : ENV.getInteractions()) inter.evaluate(store, pool, threads);
+			}
+			if ((forces & Particle.JOINTS) != 0 && indices == null && kernel == null)
+				for (Spring s : ENV.getJoints()) s.evaluate();
+			
+			if (kernel != null)
+				kernel.evaluate(store, h, out, pool, threads);
+			else if (threads > 1 && n >= 2 * GRAIN)
+				ENV.getPool().invoke(new Evaluation(store, nDim, h, out, forces, indices, 0, n, Math.max(GRAIN, n / (8 * threads))));
+			else
+				evaluate(store, nDim, h, out, forces, indices, 0, n);
+		} finally {
+			release();
+		}
+		return this;
+	}
+	private ForceKernel kernel(ParticleStore store, int nDim, int forces) {
+		if (kernels == null) kernels = new ForceKernel[Particle.ALL + 1];
+		if (kernels[forces] == null || !kernels[forces].matches(store, nDim, forces)) kernels[forces] = ForceKernel.compile(store, nDim, forces);
+		return kernels[forces];
+	}
+	private Integrator prepare() {for (Interaction inter : ENV.getInteractions()) inter.prepare(); return this;}
+	private Integrator release() {
+		for (Interaction inter : ENV.getInteractions()) inter.release();
+		for (Spring s : ENV.getJoints()) s.release();
+		return this;
+	}
+	private static void evaluate(ParticleStore store, int nDim, double h, double[] out, int forces, int[] indices, int from, int to) {
+		for (int j = from; j < to; j++) {
+			int i = indices == null ? j : indices[j];
+			if (store.isDynamic(i))
+				store.getHandle(i).computeDerivative(h, out, i * nDim, forces);
+		}
+	}
 	
-				k1.add(k2);
-				k3.add(k4);
+	private static class Evaluation extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final ParticleStore store;
+		private final double[] out;
+		private final int[] indices;
+		private final double h;
+		private final int nDim, forces, from, to, grain;
+		
+		Evaluation(ParticleStore store, int nDim, double h, double[] out, int forces, int[] indices, int from, int to, int grain) {
+			this.store = store;
+			this.nDim = nDim;
+			this.h = h;
+			this.out = out;
+			this.forces = forces;
+			this.indices = indices;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				evaluate(store, nDim, h, out, forces, indices, from, to);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Evaluation(store, nDim, h, out, forces, indices, from, mid, grain),
+				new Evaluation(store, nDim, h, out, forces, indices, mid, to, grain));
+		}
+	}
 	
-				p.setKUnsafe(Vector.add(k1, k3));
-				p.getK().div(6);
+	private Integrator integrateSynchronous(ParticleStore store, int nDim, boolean forward) {
+		
+		int n = store.getSize();
+		ensureBuffers(nDim * n);
+		boolean err = needsError();
+		int nStages = err ? tableau.getStages() : tableau.getSolutionStages();
+		double[] b = tableau.getWeights();
+		double sign = forward ? 1 : - 1;
+		boolean fsal = tableau.isFsal() && nStages == tableau.getStages();
+		boolean reuse = fsal && fsalReady && cached && matchesCache(store, nDim);
+		
+		for (int s = 0; s < nStages; s++) {
+			double[] row = tableau.getRow(s);
+			if (s > 0)
+				for (int i = 0; i < n; i++)
+					if (store.isDynamic(i)) {
+						int off = i * nDim;
+						for (int c = 0; c < nDim; c++) K[c] = 0;
+						for (int j = 0; j < row.length; j++)
+							if (row[j] != 0)
+								for (int c = 0; c < nDim; c++)
+									K[c] += row[j] * sysStages[j][off + c];
+						place(store, i, nDim, sign, K);
+					}
+			if (s == 0 && reuse) {
+				double scale = dt / fsalDt;
+				double[] src = sysStages[fsalStage], dst = sysStages[0];
+				for (int i = 0; i < n; i++)
+					if (store.isDynamic(i))
+						for (int c = i * nDim; c < (i + 1) * nDim; c++) dst[c] = scale * src[c];
+			} else
+				evaluate(store, nDim, dt, sysStages[s]);
+		}
+		
+		for (int i = 0; i < n; i++)
+			if (store.isDynamic(i)) {
+				Particle p = store.getHandle(i);
+				int off = i * nDim;
+				double[] k = p.getK();
+				for (int c = 0; c < nDim; c++) k[c] = 0;
+				for (int j = 0; j < nStages; j++)
+					if (b[j] != 0)
+						for (int c = 0; c < nDim; c++)
+							k[c] += b[j] * sysStages[j][off + c];
 				
-				if (forward) p.forward(); else p.backward();
+				place(store, i, nDim, sign, k);
+				if (err) estimateError(store, i, nDim, sysStages, off, nStages, sign);
 			}
+		
+		if (tableau.hasDenseOutput() && nStages == tableau.getStages()) saveDense(store, nDim, (float) sign);
+		fsalReady = fsal;
+		if (fsal) {
+			fsalStage = nStages - 1;
+			fsalDt = dt;
+			cached = true;
+			saveCache(store, nDim);
+		}
 		return this;
 	}
 	
-	private Integrator RK6(int nDim, boolean forward) {
-		
-		for (Particle p : ENV.getParticles())
-			if (p.isDynamic()) {
-			    Vector k1, k2, k3, k4, k5, k6, k7;
-			  
-			    k1 = p.computeK(dt, forward, new Vector(nDim));
-			    k2 = p.computeK(dt, forward, k1);
-			  
-			    Vector K = Vector.mult(k1, 3);
-			    K.add(k2);
-			    K.div(8);
-			  
-			    k3 = p.computeK(dt, forward, K);
-			  
-			    K = Vector.mult(k1, 8);
-			    K.add(Vector.mult(k2, 2));
-			    K.add(Vector.mult(k3, 8));
-			    K.div(27);
-			  
-			    k4 = p.computeK(dt, forward, K);
-			  
-			    K = Vector.mult(k1, 3 * (3 * (float) Math.sqrt(21) - 7));
-			    K.sub(Vector.mult(k2, 8 * (7 - (float) Math.sqrt(21))));
-			    K.add(Vector.mult(k3, 48 * (7 - (float) Math.sqrt(21))));
-			    K.sub(Vector.mult(k4, 3 * (21 - (float) Math.sqrt(21))));
-			    K.div(392);
-			  
-			    k5 = p.computeK(dt, forward, K);
-			  
-			    K = Vector.mult(k1, - 5 * (231 + 51 * (float) Math.sqrt(21)));
-			    K.sub(Vector.mult(k2, 40 * (7 + (float) Math.sqrt(21))));
-			    K.sub(Vector.mult(k3, 320 * (float) Math.sqrt(21)));
-			    K.add(Vector.mult(k4, 3 * (21 + 121 * (float) Math.sqrt(21))));
-			    K.add(Vector.mult(k5, 392 * (6 + (float) Math.sqrt(21))));
-			    K.div(1960);
-			  
-			    k6 = p.computeK(dt, forward, K);
-			  
-			    K = Vector.mult(k1, 15 * (22 + 7 * (float) Math.sqrt(21)));
-			    K.add(Vector.mult(k2, 120));
-			    K.add(Vector.mult(k3, 40 * (7 * (float) Math.sqrt(21) - 5)));
-			    K.sub(Vector.mult(k4, 63 * (3 * (float) Math.sqrt(21) - 2)));
-			    K.sub(Vector.mult(k5, 14 * (49 + 9 * (float) Math.sqrt(21))));
-			    K.add(Vector.mult(k6, 70 * (7 - (float) Math.sqrt(21))));
-			    K.div(180);
-			  
-			    k7 = p.computeK(dt, forward, K);
-			  
-			    p.setKUnsafe(Vector.mult(k1, 9));
-			    p.getK().add(Vector.mult(k3, 64));
-			    p.getK().add(Vector.mult(k5, 49));
-			    p.getK().add(Vector.mult(k6, 49));
-			    p.getK().add(Vector.mult(k7, 9));
-			    p.getK().div(180);
-			    
-			    if (forward) p.forward(); else p.backward();
+	private Integrator saveDense(ParticleStore store, int nDim, float sign) {
+		
+		int n = store.getSize();
+		if (denseState == null || denseState.length < nDim * n) denseState = new double[nDim * n];
+		for (int i = 0; i < n; i++)
+			for (int c = 0; c < nDim; c++)
+				denseState[i * nDim + c] = component(store, i, nDim, c);
+		denseDim = nDim;
+		denseSign = sign;
+		denseReady = true;
+		return this;
+	}
+	
+	private double interpolate(Particle p, float t, int c) {
+		
+		float t0 = (float) time - denseSign * lastDt, theta = (t - t0) / (denseSign * lastDt);
+		if (theta < - 1e-4f || theta > 1 + 1e-4f)
+			throw new RuntimeException("Time " + t + " is outside the last step");
+		if (denseWeights == null || denseWeights.length < tableau.getStages()) denseWeights = new double[tableau.getStages()];
+		tableau.getDenseWeights(theta, denseWeights);
+		
+		int off = p.getIndex() * denseDim + c;
+		double result = denseState[off];
+		for (int j = 0; j < tableau.getStages(); j++)
+			if (denseWeights[j] != 0)
+				result += denseSign * denseWeights[j] * sysStages[j][off];
+		return result;
+	}
+	
+	private boolean matchesCache(ParticleStore store, int nDim) {
+		
+		int n = store.getSize();
+		if (cacheState == null || cacheState.length != 6 * n + 1 || cacheState[6 * n] != nDim) return false;
+		double[] x = store.getX(), y = store.getY(), z = store.getZ(), vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+		for (int i = 0; i < n; i++) {
+			int off = 6 * i;
+			if (cacheState[off] != x[i] || cacheState[off + 1] != y[i] || cacheState[off + 2] != z[i] ||
+				cacheState[off + 3] != vx[i] || cacheState[off + 4] != vy[i] || cacheState[off + 5] != vz[i]) return false;
+		}
+		return true;
+	}
+	private Integrator saveCache(ParticleStore store, int nDim) {
+		
+		int n = store.getSize();
+		if (cacheState == null || cacheState.length != 6 * n + 1) cacheState = new double[6 * n + 1];
+		for (int i = 0; i < n; i++) {
+			Particle p = store.getHandle(i);
+			int off = 6 * i;
+			if (p.isDoublePrecision()) {
+				PVectorD pos = p.getPosD(), vel = p.getVelD();
+				cacheState[off] = pos.x; cacheState[off + 1] = pos.y; cacheState[off + 2] = pos.z;
+				cacheState[off + 3] = vel.x; cacheState[off + 4] = vel.y; cacheState[off + 5] = vel.z;
+			} else {
+				PVector pos = p.getPos(), vel = p.getVel();
+				cacheState[off] = pos.x; cacheState[off + 1] = pos.y; cacheState[off + 2] = pos.z;
+				cacheState[off + 3] = vel.x; cacheState[off + 4] = vel.y; cacheState[off + 5] = vel.z;
 			}
+		}
+		cacheState[6 * n] = nDim;
 		return this;
 	}
 	
-	private Integrator RKF45(int nDim, boolean forward) {
-		
-		for (Particle p : ENV.getParticles())
-			if (p.isDynamic()) {
-			    Vector k1, k2, k3, k4, k5, k6;
-			  
-			    k1 = p.computeK(dt, forward, new Vector(nDim));
-			    k2 = p.computeK(dt, forward, Vector.div(k1, 4));
-			  
-			    Vector K = Vector.mult(k1, 3);
-			    K.add(Vector.mult(k2, 9));
-			    K.div(32);
-			  
-			    k3 = p.computeK(dt, forward, K);
-			  
-			    K = Vector.mult(k1, 1932);
-			    K.sub(Vector.mult(k2, 7200));
-			    K.add(Vector.mult(k3, 7296));
-			    K.div(2197);
-			  
-			    k4 = p.computeK(dt, forward, K);
-			  
-			    K = Vector.mult(k1, 439.0f / 216);
-			    K.sub(Vector.mult(k2, 8));
-			    K.add(Vector.mult(k3, 3680.0f / 513));
-			    K.sub(Vector.mult(k4, 845.0f / 4104));
-			  
-			    k5 = p.computeK(dt, forward, K);
-			  
-			    K = Vector.mult(k1, - 8.0f / 27);
-			    K.add(Vector.mult(k2, 2));
-			    K.sub(Vector.mult(k3, 3544.0f / 2565));
-			    K.add(Vector.mult(k4, 1859.0f / 4104));
-			    K.sub(Vector.mult(k5, 11.0f / 40));
-			  
-			    k6 = p.computeK(dt, forward, K);
-			  
-			    p.setKUnsafe(Vector.mult(k1, 16.0f / 135));
-			    p.getK().add(Vector.mult(k3, 6656.0f / 12825));
-			    p.getK().add(Vector.mult(k4, 28561.0f / 56430));
-			    p.getK().sub(Vector.mult(k5, 9.0f / 50));
-			    p.getK().add(Vector.mult(k6, 2.0f / 55));
-			    
-			    if (forward) p.forward(); else p.backward();
-			  
-			    if (computeError) {
-			  
-			        K = Vector.mult(k1, 25.0f / 216);
-			        K.add(Vector.mult(k3, 1408.0f / 2565));
-			        K.add(Vector.mult(k4, 2197.0f / 4104));
-			        K.sub(Vector.div(k5, 5));
-			    
-			        Vector err = Vector.sub(K, p.getK());
-			        error = err.norm();
-			        cumError += error;
-			    }
+	private Integrator drift(ParticleStore store, double f) {
+		for (int i = 0; i < store.getSize(); i++)
+			if (store.isDynamic(i)) store.getHandle(i).drift(f);
+		return this;
+	}
+	private Integrator kick(ParticleStore store, int nDim, double f, double[] buf) {
+		for (int i = 0; i < store.getSize(); i++)
+			if (store.isDynamic(i)) kick(store, i, nDim, f, buf);
+		return this;
+	}
+	private Integrator kick(ParticleStore store, int i, int nDim, double f, double[] buf) {
+		store.getHandle(i).kick(f, buf, i * nDim + nDim / 2);
+		return this;
+	}
+	
+	private Integrator integrateSymplectic(ParticleStore store, int nDim, boolean forward) {
+		
+		int n = store.getSize();
+		if (derivs == null || derivs.length < nDim * n) {derivs = new double[nDim * n]; cached = false;}
+		double h = forward ? dt : - dt;
+		float[] drift = composition.getDrift(), kick = composition.getKick();
+		boolean valid = cached && matchesCache(store, nDim);
+		
+		for (int s = 0; s < drift.length; s++) {
+			if (drift[s] != 0) {
+				drift(store, drift[s] * h);
+				valid = false;
+			}
+			if (kick[s] != 0) {
+				if (!valid) evaluate(store, nDim, 1, derivs);
+				kick(store, nDim, kick[s] * h, derivs);
+				valid = true;
 			}
+		}
+		
+		cached = valid;
+		if (cached) saveCache(store, nDim);
 		return this;
 	}
 	
-	private Integrator CK45(int nDim, boolean forward) {
-		
-		for (Particle p : ENV.getParticles())
-			if (p.isDynamic()) {
-			    Vector k1, k2, k3, k4, k5, k6;
-			  
-			    k1 = p.computeK(dt, forward, new Vector(nDim));
-			    k2 = p.computeK(dt, forward, Vector.div(k1, 5));
-			  
-			    Vector K = Vector.mult(k1, 3);
-			    K.add(Vector.mult(k2, 9));
-			    K.div(40);
-			  
-			    k3 = p.computeK(dt, forward, K);
-			  
-			    K = Vector.mult(k1, 3);
-			    K.sub(Vector.mult(k2, 9));
-			    K.add(Vector.mult(k3, 12));
-			    K.div(10);
-			  
-			    k4 = p.computeK(dt, forward, K);
-			  
-			    K = Vector.mult(k1, - 11.0f / 54);
-			    K.add(Vector.mult(k2, 5.0f / 2));
-			    K.sub(Vector.mult(k3, 70.0f / 27));
-			    K.add(Vector.mult(k4, 35.0f / 27));
-			  
-			    k5 = p.computeK(dt, forward, K);
-			  
-			    K = Vector.mult(k1, 1631.0f / 55296);
-			    K.add(Vector.mult(k2, 175.0f / 512));
-			    K.add(Vector.mult(k3, 575.0f / 13824));
-			    K.add(Vector.mult(k4, 44275.0f / 110592));
-			    K.add(Vector.mult(k5, 253.0f / 4096));
-			  
-			    k6 = p.computeK(dt, forward, K);
-			  
-			    p.setKUnsafe(Vector.mult(k1, 37.0f / 378));
-			    p.getK().add(Vector.mult(k3, 250.0f / 621));
-			    p.getK().add(Vector.mult(k4, 125.0f / 594));
-			    p.getK().add(Vector.mult(k6, 512.0f / 1771));
-			    
-			    if (forward) p.forward(); else p.backward();
-			  
-			    if (computeError) {
-			  
-			        K = Vector.mult(k1, 2825.0f / 27648);
-			        K.add(Vector.mult(k3, 18575.0f / 48384));
-			        K.add(Vector.mult(k4, 13525.0f / 55296));
-			        K.add(Vector.mult(k5, 277.0f / 14336));
-			        K.add(Vector.div(k6, 4));
-			    
-			        Vector err = Vector.sub(K, p.getK());
-			        error = err.norm();
-			        cumError += error;
-			    }
+	private Integrator buildLevels(int length) {
+		
+		int[] forces = {Particle.INTERACTIONS, Particle.EXTERNALS, Particle.JOINTS};
+		int[] steps = {1, extSubsteps, jointSubsteps};
+		for (int i = 1; i < 3; i++)
+			for (int j = i; j > 0 && steps[j] < steps[j - 1]; j--) {
+				int t = steps[j]; steps[j] = steps[j - 1]; steps[j - 1] = t;
+				t = forces[j]; forces[j] = forces[j - 1]; forces[j - 1] = t;
 			}
+		
+		int nLevels = 0;
+		int[] lForces = new int[3], lSteps = new int[3];
+		for (int i = 0; i < 3; i++)
+			if (nLevels > 0 && lSteps[nLevels - 1] == steps[i])
+				lForces[nLevels - 1] |= forces[i];
+			else {
+				if (nLevels > 0 && steps[i] % lSteps[nLevels - 1] != 0)
+					throw new RuntimeException("RESPA substeps must be multiples of each other");
+				lForces[nLevels] = forces[i];
+				lSteps[nLevels++] = steps[i];
+			}
+		
+		levelForces = Arrays.copyOf(lForces, nLevels);
+		levelSteps = Arrays.copyOf(lSteps, nLevels);
+		if (levelAccel == null || levelAccel.length != nLevels || levelAccel[0].length < length) {
+			levelAccel = new double[nLevels][length];
+			levelValid = new boolean[nLevels];
+			cached = false;
+		}
 		return this;
 	}
 	
-	private Integrator DOPRI45(int nDim, boolean forward) {
-		
-		for (Particle p : ENV.getParticles())
-			if (p.isDynamic()) {
-			    Vector k1, k2, k3, k4, k5, k6, k7;
-			  
-			    k1 = p.computeK(dt, forward, new Vector(nDim));
-			    k2 = p.computeK(dt, forward, Vector.div(k1, 5));
-			  
-			    Vector K = Vector.mult(k1, 3);
-			    K.add(Vector.mult(k2, 9));
-			    K.div(40);
-			  
-			    k3 = p.computeK(dt, forward, K);
-			  
-			    K = Vector.mult(k1, 44.0f / 45);
-			    K.sub(Vector.mult(k2, 56.0f / 15));
-			    K.add(Vector.mult(k3, 32.0f / 9));
-			  
-			    k4 = p.computeK(dt, forward, K);
-			  
-			    K = Vector.mult(k1, 19372.0f / 6561);
-			    K.sub(Vector.mult(k2, 25360.0f / 2187));
-			    K.add(Vector.mult(k3, 64448.0f / 6561));
-			    K.sub(Vector.mult(k4, 212.0f / 729));
-			  
-			    k5 = p.computeK(dt, forward, K);
-			  
-			    K = Vector.mult(k1, 9017.0f / 3168);
-			    K.sub(Vector.mult(k2, 355.0f / 33));
-			    K.add(Vector.mult(k3, 46732.0f / 5247));
-			    K.add(Vector.mult(k4, 49.0f / 176));
-			    K.sub(Vector.mult(k5, 5103.0f / 18656));
-			  
-			    k6 = p.computeK(dt, forward, K);
-			  
-			    K = Vector.mult(k1, 35.0f / 384);
-			    K.add(Vector.mult(k3, 500.0f / 1113));
-			    K.add(Vector.mult(k4, 125.0f / 192));
-			    K.sub(Vector.mult(k5, 2187.0f / 6784));
-			    K.add(Vector.mult(k6, 11.0f / 84));
-			  
-			    k7 = p.computeK(dt, forward, K);
-			  
-			    p.setKUnsafe(K.copy());
-			    if (forward) p.forward(); else p.backward();
-			  
-			    if (computeError) {
-			  
-			        K = Vector.mult(k1, 5179.0f / 57600);
-			        K.add(Vector.mult(k3, 7571.0f / 16695));
-			        K.add(Vector.mult(k4, 393.0f / 640));
-			        K.sub(Vector.mult(k5, 92097.0f / 339200));
-			        K.add(Vector.mult(k6, 187.0f / 2100));
-			        K.add(Vector.div(k7, 40));
-			        
-			        Vector err = Vector.sub(K, p.getK());    
-			        error = err.norm();
-			        cumError += error;
-			    }
+	private Integrator respa(ParticleStore store, int nDim, int level, double h) {
+		
+		if (!levelValid[level]) {
+			evaluate(store, nDim, 1, levelAccel[level], levelForces[level]);
+			levelValid[level] = true;
+		}
+		kick(store, nDim, h / 2, levelAccel[level]);
+		
+		if (level == levelSteps.length - 1) {
+			drift(store, h);
+			for (int l = 0; l < levelValid.length; l++) levelValid[l] = false;
+		} else {
+			int ratio = levelSteps[level + 1] / levelSteps[level];
+			for (int m = 0; m < ratio; m++)
+				respa(store, nDim, level + 1, h / ratio);
+		}
+		
+		if (!levelValid[level]) {
+			evaluate(store, nDim, 1, levelAccel[level], levelForces[level]);
+			levelValid[level] = true;
+		}
+		kick(store, nDim, h / 2, levelAccel[level]);
+		return this;
+	}
+	
+	private Integrator integrateRespa(ParticleStore store, int nDim, boolean forward) {
+		
+		buildLevels(nDim * store.getSize());
+		boolean valid = cached && matchesCache(store, nDim);
+		for (int l = 0; l < levelValid.length; l++) levelValid[l] = valid;
+		
+		respa(store, nDim, 0, forward ? dt : - dt);
+		
+		cached = true;
+		saveCache(store, nDim);
+		return this;
+	}
+	
+	private int chooseLevel(ParticleStore store, int i, int nDim, double h, double step) {
+		
+		int off = i * nDim + nDim / 2;
+		double a = 0, j = 0;
+		for (int c = 0; c < nDim / 2; c++) {
+			double ac = derivs[off + c];
+			a += ac * ac;
+			if (step != 0) {
+				double jc = (ac - prevAccel[off + c]) / step;
+				j += jc * jc;
+			}
+		}
+		if (a == 0) return 0;
+		
+		double scale;
+		if (step != 0) {
+			if (j == 0) return 0;
+			scale = Math.sqrt(a / j);
+		} else {
+			double vx = store.getVX()[i], vy = store.getVY()[i], vz = store.getVZ()[i];
+			scale = Math.sqrt((vx * vx + vy * vy + vz * vz) / a);
+		}
+		
+		double ts = blockAccuracy * scale, s = Math.abs(h);
+		int level = 0;
+		while (s > ts && level < blockLevels) {
+			s /= 2;
+			level++;
+		}
+		return level;
+	}
+	
+	private Integrator integrateBlock(ParticleStore store, int nDim, boolean forward) {
+		
+		int n = store.getSize(), ticks = 1 << blockLevels, half = nDim / 2;
+		double h = forward ? dt : - dt;
+		if (derivs == null || derivs.length < nDim * n) {derivs = new double[nDim * n]; cached = false;}
+		if (levels == null || levels.length < n) {levels = new int[n]; due = new int[n]; prevAccel = new double[nDim * n]; cached = false;}
+		
+		if (!cached || !matchesCache(store, nDim)) {
+			evaluate(store, nDim, 1, derivs);
+			for (int i = 0; i < n; i++)
+				if (store.isDynamic(i)) levels[i] = chooseLevel(store, i, nDim, h, 0);
+		}
+		for (int i = 0; i < n; i++)
+			if (store.isDynamic(i)) kick(store, i, nDim, h / (1 << levels[i]) / 2, derivs);
+		
+		for (int t = 1; t <= ticks; t++) {
+			drift(store, h / ticks);
+			
+			int nDue = 0;
+			for (int i = 0; i < n; i++)
+				if (store.isDynamic(i) && t % (ticks >> levels[i]) == 0) {
+					due[nDue++] = i;
+					System.arraycopy(derivs, i * nDim + half, prevAccel, i * nDim + half, half);
+				}
+			if (nDue == 0) continue;
+			evaluate(store, nDim, 1, derivs, Particle.ALL, due, nDue);
+			
+			for (int d = 0; d < nDue; d++) {
+				int i = due[d];
+				double step = h / (1 << levels[i]);
+				kick(store, i, nDim, step / 2, derivs);
+				
+				int level = chooseLevel(store, i, nDim, h, step);
+				while (level < levels[i] && t % (ticks >> level) != 0) level++;
+				levels[i] = level;
+				if (t < ticks) kick(store, i, nDim, h / (1 << level) / 2, derivs);
 			}
+		}
+		
+		cached = true;
+		saveCache(store, nDim);
 		return this;
 	}
 	
 	public Environment getParticles() {return ENV;}
-	public METHOD[] getMethodList() {return new METHOD[] {METHOD.EULER, METHOD.RK4, METHOD.RK6, METHOD.RKF45, METHOD.CK45, METHOD.DOPRI45};}
+	public METHOD[] getMethodList() {return METHOD.values();}
 	public METHOD getMethod() {return method;}
+	public Tableau getTableau() {return tableau;}
+	public Composition getComposition() {return composition;}
+	public EVALUATION getEvaluation() {return evaluation;}
 	public float getDt() {return dt;}
+	public float getLastDt() {return lastDt;}
+	public float getMinDt() {return minDt;}
+	public float getMaxDt() {return maxDt;}
+	public float getTime() {return (float) time;}
 	public float getError() {return error;}
 	public float getCumulativeError() {return cumError;}
-	public boolean hasError() {return computeError & (method == METHOD.RKF45 || method == METHOD.CK45 || method == METHOD.DOPRI45);}
+	public float getErrorNorm() {return errNorm;}
+	public float getAbsoluteTolerance() {return absTol;}
+	public float getRelativeTolerance() {return relTol;}
+	public int getRejectedSteps() {return rejected;}
+	public int getExternalSubsteps() {return extSubsteps;}
+	public int getJointSubsteps() {return jointSubsteps;}
+	public int getBlockLevels() {return blockLevels;}
+	public float getBlockAccuracy() {return blockAccuracy;}
+	public int getLevel(Particle p) {return levels != null && p.getStore() == ENV.getStore() && p.getIndex() < levels.length ? levels[p.getIndex()] : 0;}
+	public boolean hasError() {return computeError & tableau != null && tableau.hasError();}
+	public boolean computesError() {return computeError;}
+	public boolean isCompiled() {return compiled;}
+	public ForceKernel getKernel(int forces) {return kernels == null ? null : kernels[forces];}
+	public boolean isAdaptive() {return adaptive && tableau != null && tableau.hasError();}
+	public boolean isSymplectic() {return composition != null || method == METHOD.RESPA;}
+	public boolean hasDenseOutput() {return denseReady && tableau != null && tableau.hasDenseOutput();}
+	public PVector getDensePos(Particle p, float t) {
+		if (!hasDenseOutput()) throw new RuntimeException("No dense output available for the last step");
+		if (!p.isDynamic() || p.getStore() != ENV.getStore() || p.getIndex() * denseDim >= denseState.length) return p.getPos().copy();
+		if (denseDim == 4) return new PVector((float) interpolate(p, t, 0), (float) interpolate(p, t, 1), p.getPos().z);
+		return new PVector((float) interpolate(p, t, 0), (float) interpolate(p, t, 1), (float) interpolate(p, t, 2));
+	}
+	public PVector getDenseVel(Particle p, float t) {
+		if (!hasDenseOutput()) throw new RuntimeException("No dense output available for the last step");
+		if (!p.isDynamic() || p.getStore() != ENV.getStore() || p.getIndex() * denseDim >= denseState.length) return p.getVel().copy();
+		if (denseDim == 4) return new PVector((float) interpolate(p, t, 2), (float) interpolate(p, t, 3), p.getVel().z);
+		return new PVector((float) interpolate(p, t, 3), (float) interpolate(p, t, 4), (float) interpolate(p, t, 5));
+	}
 	
 	public Integrator setEnvironment(Environment E) {ENV = E; return this;}
-	public Integrator setMethod(METHOD m) {method = m; return this;}
-	public Integrator setDt(float val) {dt = val; return this;}
-	public Integrator resetError() {cumError = 0.0f; error = 0.0f; return this;}
+	public Integrator setMethod(METHOD m) {method = m; tableau = m.getTableau(); composition = m.getComposition(); cached = false; return this;}
+	public Integrator setTableau(Tableau t) {method = null; tableau = t; composition = null; cached = false; return this;}
+	public Integrator setComposition(Composition c) {method = null; tableau = null; composition = c; cached = false; return this;}
+	public Integrator clearCache() {cached = false; return this;}
+	public Integrator setSubsteps(int externals, int joints) {
+		if (externals < 1 || joints < 1) throw new RuntimeException("Substeps must be at least 1");
+		extSubsteps = externals; jointSubsteps = joints; cached = false; return this;
+	}
+	public Integrator setBlockLevels(int val) {
+		if (val < 0 || val > 20) throw new RuntimeException("Block levels must be between 0 and 20");
+		blockLevels = val; cached = false; return this;
+	}
+	public Integrator setBlockAccuracy(float val) {
+		if (val <= 0) throw new RuntimeException("Block accuracy must be positive");
+		blockAccuracy = val; return this;
+	}
+	public Integrator setComputeError(boolean val) {computeError = val; return this;}
+	public Integrator setEvaluation(EVALUATION ev) {evaluation = ev; return this;}
+	public Integrator setCompiled(boolean val) {compiled = val; kernels = null; return this;}
+	public Integrator setDt(float val) {dt = val; lastDt = val; return this;}
+	public Integrator setDtLimits(float min, float max) {
+		if (min < 0 || max < min) throw new RuntimeException("Invalid dt limits");
+		minDt = min; maxDt = max; return this;
+	}
+	public Integrator setTolerance(float abs, float rel) {
+		if (abs <= 0 || rel < 0) throw new RuntimeException("Absolute tolerance must be positive and relative tolerance must not be negative");
+		absTol = abs; relTol = rel; return this;
+	}
+	public Integrator setAdaptive(boolean val) {adaptive = val; prevErrNorm = 1e-4f; return this;}
+	public Integrator setTime(float t) {time = t; return this;}
+	public Integrator resetError() {cumError = 0.0f; error = 0.0f; errNorm = 0.0f; prevErrNorm = 1e-4f; rejected = 0; return this;}
 }
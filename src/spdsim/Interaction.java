@@ -3,6 +3,13 @@ package spdsim;
 import java.util.List;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import processing.core.PVector;
 
 public abstract class Interaction {
@@ -10,6 +17,22 @@ public abstract class Interaction {
 	private List<Particle> particles;
 	private boolean includeAdded;
 	private String id;
+	private float cutoff, skin;
+	private NeighbourList neighbours;
+	private double[][] pairAccel;
+	private double[] pairMass;
+	private int[] pairSlot, pairGroup, pairRun;
+	private final Map<String, Map<String, Boolean>> exclusions = new HashMap<String, Map<String, Boolean>>();
+	private long[] exclusion;
+	private ParticleStore maskStore;
+	private int maskGroups, maskRevision, exclusionRevision = 1;
+	private Boundaries periodic;
+	private final ThreadLocal<Particle> images = new ThreadLocal<Particle>();
+	private ParticleStore pairStore;
+	private boolean scattered;
+	private int revision;
+	private ParticleBatch batch;
+	private float[] batchAccel;
 	
 	private final Particle unit = Particle.unit(null, 1);
 	
@@ -30,6 +53,7 @@ public abstract class Interaction {
 	public PVector accelField(Particle p, float x, float y, float z) {
 		
 		unit.setPos(x, y, z);
+		if (!within(p, unit)) return new PVector(0, 0, 0);
 		return acceleration(p, unit);
 	}
 	public PVector accelField(Particle p, float x, float y) {return accelField(p, x, y, 0.0f);}
@@ -38,11 +62,29 @@ public abstract class Interaction {
 	public float potField(Particle p, float x, float y, float z) {
 		
 		unit.setPos(x, y, z);
+		if (!within(p, unit)) return 0;
 		return potentialEnergy(p, unit);
 	}
 	public float potField(Particle p, float x, float y) {return potField(p, x, y, 0);}
 	public float potField(Particle p, PVector pos) {return potField(p, pos.x, pos.y, pos.z);}
 	
+	public PVector[] accelFields(List<Particle> pts, float[] x, float[] y, float[] z) {
+		
+		PVector[] result = new PVector[x.length];
+		for (int i = 0; i < x.length; i++) {
+			result[i] = new PVector(0, 0, 0);
+			for (Particle p : pts) if (p.isIn(this)) result[i].add(accelField(p, x[i], y[i], z == null ? 0 : z[i]));
+		}
+		return result;
+	}
+	public float[] potFields(List<Particle> pts, float[] x, float[] y, float[] z) {
+		
+		float[] result = new float[x.length];
+		for (int i = 0; i < x.length; i++)
+			for (Particle p : pts) if (p.isIn(this)) result[i] += potField(p, x[i], y[i], z == null ? 0 : z[i]);
+		return result;
+	}
+	
 	public float computeRawPotentialEnergyPairs(List<Particle> pts) {
 		
 		float result = 0;
@@ -52,8 +94,8 @@ public abstract class Interaction {
 			for (int j = i + 1; j < pts.size(); j++) {
 				
 				Particle p2 = pts.get(j);
-				if (p1.isActive(p2))
-					result += potentialEnergy(p1, p2);
+				if (!excludes(p1, p2) && within(p1, p2))
+					result += potentialEnergy(image(p1, p2), p2);
 			}
 		}
 		
@@ -61,42 +103,398 @@ public abstract class Interaction {
 	}
 	
 	public float computePotentialEnergyPairs() {
+		if (cutoff > 0) return updateNeighbours().potentialEnergy(this, null);
 		return computeRawPotentialEnergyPairs(particles);
 	}
 	
 	public float computePotentialEnergyPairs(List<Particle> toCompute) {
 		
 		List<Particle> areInInter = new ArrayList<Particle>();
-		for (Particle p : toCompute) if (p.isIn(this)) areInInter.add(p);
+		Map<Particle, Boolean> chosen = new IdentityHashMap<Particle, Boolean>();
+		for (Particle p : toCompute) if (p.isIn(this) && chosen.put(p, true) == null) areInInter.add(p);
 		if (areInInter.isEmpty()) return 0;
+		if (cutoff > 0) return updateNeighbours().potentialEnergy(this, chosen);
 		
 		float result = computeRawPotentialEnergyPairs(areInInter);
 		for (Particle p1 : areInInter)
 			for (Particle p2 : particles)
-				if (!areInInter.contains(p2) && p1.isActive(p2))
-					result += potentialEnergy(p1, p2);
+				if (!chosen.containsKey(p2) && !excludes(p1, p2) && within(p1, p2))
+					result += potentialEnergy(image(p1, p2), p2);
 		
 		return result;
 	}
 	
 	public Interaction prepareRemoval() {for (Particle p : particles) p.remove(this); return this;}
+	public Interaction prepare() {
+		
+		if (cutoff > 0) updateNeighbours();
+		return this;
+	}
+	private NeighbourList updateNeighbours() {
+		if (neighbours == null) neighbours = new NeighbourList();
+		return neighbours.update(this);
+	}
+	public boolean accumulate(Particle p, double[] out) {
+		
+		if (scattered && p.getStore() == pairStore) {
+			int i = 3 * p.getIndex();
+			out[0] = pairAccel[0][i];
+			out[1] = pairAccel[0][i + 1];
+			out[2] = pairAccel[0][i + 2];
+			return true;
+		}
+		return cutoff > 0 && neighbours != null && neighbours.accumulate(this, p, out);
+	}
+	
+	public Interaction evaluate(ParticleStore store, ForkJoinPool pool, int threads) {
+		
+		scattered = false;
+		mask(store);
+		if (isBatched() && cutoff <= 0 && periodic == null && batch(store, pool, threads)) return this;
+		return scatter(store, pool, threads);
+	}
+	private boolean batch(ParticleStore store, ForkJoinPool pool, int threads) {
+		
+		if (batch == null) batch = new ParticleBatch();
+		batch.load(particles);
+		if (batch.isEmpty() || !batch.isActive() || batch.isDoublePrecision()) return false;
+		
+		int size = batch.getSize(), n = store.getSize();
+		if (batchAccel == null || batchAccel.length < 3 * size) batchAccel = new float[3 * size];
+		Arrays.fill(batchAccel, 0, 3 * size, 0);
+		if (pool != null && threads > 1 && size >= 64)
+			pool.invoke(new Batch(0, size, Math.max(16, size / (8 * threads))));
+		else
+			accelerations(batch, 0, size, batch, batchAccel);
+		
+		if (pairAccel == null || pairAccel[0].length < 3 * n) pairAccel = new double[1][3 * n];
+		for (int i = 0; i < size; i++) {
+			Particle p = batch.getHandle(i);
+			if (p.getStore() != store) continue;
+			int k = 3 * p.getIndex();
+			pairAccel[0][k] = batchAccel[3 * i];
+			pairAccel[0][k + 1] = batchAccel[3 * i + 1];
+			pairAccel[0][k + 2] = batchAccel[3 * i + 2];
+		}
+		pairStore = store;
+		scattered = true;
+		return true;
+	}
+	
+	public Interaction scatter(ParticleStore store, ForkJoinPool pool, int threads) {
+		
+		scattered = false;
+		if (!isSymmetric() || particles.isEmpty()) return this;
+		
+		int size = particles.size();
+		if (pairSlot == null || pairSlot.length < size) {
+			pairSlot = new int[size];
+			pairMass = new double[size];
+			pairGroup = new int[size];
+			pairRun = new int[size];
+		}
+		boolean massless = false;
+		for (int i = 0; i < size; i++) {
+			Particle p = particles.get(i);
+			pairSlot[i] = p.getStore() == store && p.isDynamic() ? 3 * p.getIndex() : - 1;
+			pairMass[i] = p.getMass() == 0 ? 0 : 1.0 / p.getMass();
+			massless |= p.getMass() == 0;
+		}
+		groups(store, size);
+		
+		int n = store.getSize(), tasks = pool != null && threads > 1 && size >= 64 ? threads : 1;
+		if (pairAccel == null || pairAccel.length != tasks || pairAccel[0].length < 3 * n) pairAccel = new double[tasks][3 * n];
+		if (tasks == 1)
+			scatter(store, 0, 1, pairAccel[0]);
+		else {
+			Scatter[] work = new Scatter[tasks];
+			for (int t = 0; t < tasks; t++) work[t] = new Scatter(store, t, tasks);
+			pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {invokeAll(work);}
+			});
+			for (int t = 1; t < tasks; t++)
+				for (int i = 0; i < 3 * n; i++) pairAccel[0][i] += pairAccel[t][i];
+		}
+		if (massless) massless(pairAccel[0]);
+		pairStore = store;
+		scattered = true;
+		return this;
+	}
+	private void groups(ParticleStore store, int size) {
+		
+		for (int i = 0; i < size; i++) {
+			Particle p = particles.get(i);
+			pairGroup[i] = p.isActive() ? - 1 : p.getStore() == store ? p.getGroup() : store.getGroup(p.getActiveLabel());
+		}
+		for (int i = size - 1; i >= 0; i--)
+			pairRun[i] = i + 1 < size && pairGroup[i + 1] == pairGroup[i] ? pairRun[i + 1] : i + 1;
+		mask(store);
+	}
+	private void mask(ParticleStore store) {
+		
+		int n = store.getGroupCount();
+		if (store == maskStore && n == maskGroups && maskRevision == exclusionRevision) return;
+		long[] bits = new long[(n * n + 63) >>> 6];
+		for (int g = 0; g < n; g++)
+			if (isExcluded(store.getGroupLabel(g), store.getGroupLabel(g))) bits[(g * n + g) >>> 6] |= 1L << (g * n + g);
+		for (Map.Entry<String, Map<String, Boolean>> row : exclusions.entrySet()) {
+			int g1 = store.findGroup(row.getKey());
+			if (g1 < 0) continue;
+			for (Map.Entry<String, Boolean> e : row.getValue().entrySet()) {
+				int g2 = store.findGroup(e.getKey());
+				if (g2 >= 0 && g2 != g1 && e.getValue()) bits[(g1 * n + g2) >>> 6] |= 1L << (g1 * n + g2);
+			}
+		}
+		exclusion = bits;
+		maskStore = store;
+		maskGroups = n;
+		maskRevision = exclusionRevision;
+	}
+	private boolean excluded(int g1, int g2) {
+		
+		if (g1 < 0 || g2 < 0) return false;
+		int k = g1 * maskGroups + g2;
+		return (exclusion[k >>> 6] & 1L << k) != 0;
+	}
+	private void scatter(ParticleStore store, int offset, int stride, double[] buf) {
+		
+		Arrays.fill(buf, 0, 3 * store.getSize(), 0);
+		boolean listed = cutoff > 0 && neighbours != null && neighbours.isValid();
+		int[] start = listed ? neighbours.getOffsets() : null, list = listed ? neighbours.getIndices() : null;
+		int size = particles.size(), groups = maskGroups;
+		int[] group = pairGroup, run = pairRun;
+		long[] mask = exclusion;
+		double[] f = new double[3];
+		for (int i = offset; i < size; i += stride) {
+			if (pairMass[i] == 0) continue;
+			Particle p1 = particles.get(i);
+			int s1 = pairSlot[i], row = group[i] < 0 ? - 1 : group[i] * groups;
+			double ax = 0, ay = 0, az = 0;
+			int from = listed ? start[i] : i + 1, to = listed ? start[i + 1] : size;
+			for (int k = from; k < to; k++) {
+				int j = listed ? list[k] : k, s2 = pairSlot[j], b = row + group[j];
+				if (row >= 0 && group[j] >= 0 && (mask[b >>> 6] & 1L << b) != 0) {if (!listed) k = run[j] - 1; continue;}
+				if (j <= i || (s1 < 0 && s2 < 0) || pairMass[j] == 0) continue;
+				Particle p2 = particles.get(j);
+				if (!within(p1, p2)) continue;
+				force(image(p1, p2), p2, f);
+				if (s2 >= 0) {
+					double m = pairMass[j];
+					buf[s2] += f[0] * m;
+					buf[s2 + 1] += f[1] * m;
+					buf[s2 + 2] += f[2] * m;
+				}
+				ax -= f[0]; ay -= f[1]; az -= f[2];
+			}
+			if (s1 >= 0) {
+				double m = pairMass[i];
+				buf[s1] += ax * m;
+				buf[s1 + 1] += ay * m;
+				buf[s1 + 2] += az * m;
+			}
+		}
+	}
+	private void massless(double[] buf) {
+		
+		int size = particles.size();
+		double[] f = new double[3];
+		for (int i = 0; i < size; i++) {
+			int s = pairSlot[i];
+			if (s < 0) continue;
+			Particle p = particles.get(i);
+			for (int j = 0; j < size; j++) {
+				if (j == i || (pairMass[i] != 0 && pairMass[j] != 0) || excluded(pairGroup[i], pairGroup[j])) continue;
+				Particle o = particles.get(j);
+				if (!within(o, p)) continue;
+				acceleration(image(o, p), p, f);
+				buf[s] += f[0];
+				buf[s + 1] += f[1];
+				buf[s + 2] += f[2];
+			}
+		}
+	}
+	private void acceleration(Particle p1, Particle p2, double[] out) {
+		
+		if (p2.isDoublePrecision()) {
+			PVectorD a = accelerationD(p1, p2);
+			out[0] = a.x; out[1] = a.y; out[2] = a.z;
+		} else {
+			PVector a = acceleration(p1, p2);
+			out[0] = a.x; out[1] = a.y; out[2] = a.z;
+		}
+	}
+	private void force(Particle p1, Particle p2, double[] out) {
+		
+		if (p1.isDoublePrecision() && p2.isDoublePrecision()) {
+			PVectorD f = forceD(p1, p2);
+			out[0] = f.x; out[1] = f.y; out[2] = f.z;
+		} else {
+			PVector f = force(p1, p2);
+			out[0] = f.x; out[1] = f.y; out[2] = f.z;
+		}
+	}
+	public Interaction release() {scattered = false; return this;}
+	public double[] getScattered(ParticleStore store) {return scattered && store == pairStore ? pairAccel[0] : null;}
+	
+	private class Scatter extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final ParticleStore store;
+		private final int offset, stride;
+		
+		Scatter(ParticleStore store, int offset, int stride) {
+			this.store = store;
+			this.offset = offset;
+			this.stride = stride;
+		}
+		
+		@Override
+		protected void compute() {scatter(store, offset, stride, pairAccel[offset]);}
+	}
+	
+	private class Batch extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int from, to, grain;
+		
+		Batch(int from, int to, int grain) {
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				accelerations(batch, from, to, batch, batchAccel);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Batch(from, mid, grain), new Batch(mid, to, grain));
+		}
+	}
+	
+	public boolean within(Particle p1, Particle p2) {
+		
+		if (cutoff <= 0) return true;
+		double dx, dy, dz;
+		if (p1.isDoublePrecision() && p2.isDoublePrecision()) {
+			PVectorD a = p1.getPosD(), b = p2.getPosD();
+			dx = a.x - b.x; dy = a.y - b.y; dz = a.z - b.z;
+		} else {
+			PVector a = p1.getPos(), b = p2.getPos();
+			dx = a.x - b.x; dy = a.y - b.y; dz = a.z - b.z;
+		}
+		if (p1.getDim() == Environment.DIMENSION.TWO) dz = 0;
+		if (periodic != null) {dx = periodic.imageX(dx); dy = periodic.imageY(dy); dz = periodic.imageZ(dz);}
+		return dx * dx + dy * dy + dz * dz < (double) cutoff * cutoff;
+	}
+	public Particle image(Particle p1, Particle p2) {return periodic == null ? p1 : shifted(p1, p2);}
+	private Particle shifted(Particle p1, Particle p2) {
+		
+		boolean exact = p1.isDoublePrecision() && p2.isDoublePrecision(), two = p1.getDim() == Environment.DIMENSION.TWO;
+		double x1, y1, z1, x2, y2, z2;
+		if (exact) {
+			PVectorD a = p1.getPosD(), b = p2.getPosD();
+			x1 = a.x; y1 = a.y; z1 = a.z; x2 = b.x; y2 = b.y; z2 = b.z;
+		} else {
+			PVector a = p1.getPos(), b = p2.getPos();
+			x1 = a.x; y1 = a.y; z1 = a.z; x2 = b.x; y2 = b.y; z2 = b.z;
+		}
+		double dx = periodic.imageX(x1 - x2), dy = periodic.imageY(y1 - y2), dz = two ? z1 - z2 : periodic.imageZ(z1 - z2);
+		if (dx == x1 - x2 && dy == y1 - y2 && dz == z1 - z2) return p1;
+		
+		Particle img = images.get();
+		if (img == null) images.set(img = Particle.unit(null, 1));
+		if (img.getDim() != p1.getDim()) img.setDim(p1.getDim());
+		img.setRadius(p1.getRadius()).setMass(p1.getMass()).setCharge(p1.getCharge());
+		img.setDoublePrecision(exact).setPos((float) (x2 + dx), (float) (y2 + dy), (float) (z2 + dz));
+		if (exact) img.getPosD().set(x2 + dx, y2 + dy, z2 + dz);
+		return img;
+	}
 		
 	public abstract PVector acceleration(Particle p1, Particle p2);
+	public PVectorD accelerationD(Particle p1, Particle p2) {PVector a = acceleration(p1, p2); return new PVectorD(a.x, a.y, a.z);}
+	public void accelerations(ParticleBatch targets, int from, int to, ParticleBatch sources, float[] out) {
+		
+		for (int i = from; i < to; i++) {
+			Particle p = targets.getHandle(i);
+			float ax = 0, ay = 0, az = 0;
+			for (int j = 0; j < sources.getSize(); j++) {
+				Particle o = sources.getHandle(j);
+				if (o == p || excludes(o, p) || !within(o, p)) continue;
+				PVector a = acceleration(image(o, p), p);
+				ax += a.x; ay += a.y; az += a.z;
+			}
+			out[3 * i] += ax;
+			out[3 * i + 1] += ay;
+			out[3 * i + 2] += az;
+		}
+	}
+	/** Inactive particles whose labels form an excluded pair do not interact; active particles interact with everything. By default each label excludes only itself. */
+	public boolean isExcluded(String label1, String label2) {
+		
+		Map<String, Boolean> row = exclusions.get(label1);
+		Boolean val = row == null ? null : row.get(label2);
+		return val != null ? val : Objects.equals(label1, label2);
+	}
+	public boolean excludes(Particle p1, Particle p2) {
+		
+		if (p1.isActive() || p2.isActive()) return false;
+		ParticleStore store = p1.getStore();
+		if (store != null && store == maskStore && p2.getStore() == store && maskRevision == exclusionRevision && p1.getGroup() < maskGroups && p2.getGroup() < maskGroups)
+			return excluded(p1.getGroup(), p2.getGroup());
+		return isExcluded(p1.getActiveLabel(), p2.getActiveLabel());
+	}
 	public float potentialEnergy(Particle p1, Particle p2) {return 0;};
+	/** force(p1, p2) is the force on p2 from p1 and the opposite force acts on p1. Pairs with a massless particle still go through acceleration(). */
+	public boolean isSymmetric() {return false;}
+	public boolean isBatched() {return false;}
+	public PVector force(Particle p1, Particle p2) {return acceleration(p1, p2).mult(p2.getMass());}
+	public PVectorD forceD(Particle p1, Particle p2) {return accelerationD(p1, p2).mult(p2.getMass());}
 	
 	public List<Particle> getParticles() {return particles;}
+	public float getCutoff() {return cutoff;}
+	public float getSkin() {return skin;}
+	public boolean hasCutoff() {return cutoff > 0;}
+	public NeighbourList getNeighbours() {return neighbours;}
 	public String getId() {return id;}
 	public boolean includedInAddition() {return includeAdded;}
 	public boolean contains(Particle p) {return particles.contains(p);}
 	public final Particle getUnit() {return unit;}
+	public Boundaries getPeriodic() {return periodic;}
+	public boolean isPeriodic() {return periodic != null;}
+	public int getRevision() {return revision;}
 	
-	public Interaction add(Particle p) {if (!contains(p)) particles.add(p); return this;} //HAY QUE IMPLEMENTR UN ANADIR INTERACCION
+	public Interaction add(Particle p) {if (!contains(p)) {particles.add(p); revision++;} return this;} //HAY QUE IMPLEMENTR UN ANADIR INTERACCION
 	public Interaction add(List<Particle> pts) {for (Particle p : pts) add(p); return this;}
-	public Interaction setParticles(List<Particle> pts) {particles.clear(); particles.addAll(pts); return this;}
-	public Interaction remove(Particle p) {particles.remove(p); return this;}
+	public Interaction setParticles(List<Particle> pts) {particles.clear(); particles.addAll(pts); revision++; return this;}
+	public Interaction remove(Particle p) {if (particles.remove(p)) revision++; return this;}
 	public Interaction remove(List<Particle> pts) {for (Particle p : pts) remove(p); return this;}
-	public Interaction remove(int index) {particles.remove(index); return this;}
-	public Interaction clear() {particles.clear(); return this;}
+	public Interaction remove(int index) {particles.remove(index); revision++; return this;}
+	public Interaction clear() {particles.clear(); revision++; return this;}
+	Interaction touch() {revision++; return this;}
 	public Interaction includeInAddition(boolean val) {includeAdded = val; return this;}
+	public Interaction setCutoff(float rc, float skin) {
+		if (rc < 0 || skin < 0) throw new RuntimeException("Cutoff and skin must not be negative");
+		cutoff = rc; this.skin = skin; if (rc == 0) neighbours = null; return this;
+	}
+	public Interaction setCutoff(float rc) {return setCutoff(rc, 0.2f * rc);}
+	public Interaction setExcluded(String label1, String label2, boolean val) {
+		
+		for (int e = 0; e < 2; e++) {
+			Map<String, Boolean> row = exclusions.get(e == 0 ? label1 : label2);
+			if (row == null) exclusions.put(e == 0 ? label1 : label2, row = new HashMap<String, Boolean>());
+			row.put(e == 0 ? label2 : label1, val);
+		}
+		exclusionRevision++;
+		if (neighbours != null) neighbours.invalidate();
+		return this;
+	}
+	public Interaction setPeriodic(Boundaries b) {periodic = b; if (neighbours != null) neighbours.invalidate(); return this;}
 	
 }
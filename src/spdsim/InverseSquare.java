@@ -0,0 +1,331 @@
+package spdsim;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import processing.core.PVector;
+
+public class InverseSquare extends Interaction {
+
+	public enum SOURCE {MASS, CHARGE;}
+	public enum SOLVER {DIRECT, TREE, FMM, PM;}
+
+	private SOURCE source;
+	private SOLVER solverType;
+	private float constant, softening, theta;
+	private int expansion;
+	private FieldSolver solver, unwrapped;
+	private SOLVER unwrappedType;
+	private FastMultipole diagnostics;
+	private boolean staticField;
+	private BarnesHut statics;
+	private Map<Particle, Boolean> fixed;
+	private Particle[] movers;
+	private int staticRevision;
+	private double fixedEnergy;
+
+	public InverseSquare(String id, float constant, SOURCE source) {
+
+		super(id);
+		this.constant = constant;
+		this.source = source;
+		softening = 0;
+		theta = 0.5f;
+		expansion = 4;
+		solverType = SOLVER.DIRECT;
+		staticRevision = - 1;
+	}
+	public InverseSquare(float constant, SOURCE source) {this("", constant, source);}
+
+	public static InverseSquare gravity(float G) {return new InverseSquare("gravity", G, SOURCE.MASS);}
+	public static InverseSquare coulomb(float k) {return new InverseSquare("coulomb", k, SOURCE.CHARGE);}
+
+	public double getSource(Particle p) {return source == SOURCE.MASS ? p.getMass() : p.getCharge();}
+	public double getCoupling(Particle p) {return source == SOURCE.MASS ? 1 : - p.getCharge() / p.getMass();}
+
+	@Override
+	public PVector acceleration(Particle p1, Particle p2) {
+
+		PVector d = PVector.sub(p1.getPos(), p2.getPos());
+		float r2 = d.magSq() + softening * softening;
+		return d.mult((float) (constant * getSource(p1) * getCoupling(p2) / (r2 * Math.sqrt(r2))));
+	}
+	@Override
+	public PVectorD accelerationD(Particle p1, Particle p2) {
+
+		if (!p1.isDoublePrecision() || !p2.isDoublePrecision()) return super.accelerationD(p1, p2);
+		PVectorD d = PVectorD.sub(p1.getPosD(), p2.getPosD());
+		double r2 = d.magSq() + softening * softening;
+		return d.mult(constant * getSource(p1) * getCoupling(p2) / (r2 * Math.sqrt(r2)));
+	}
+	@Override
+	public float potentialEnergy(Particle p1, Particle p2) {
+
+		float r2 = PVector.sub(p1.getPos(), p2.getPos()).magSq() + softening * softening;
+		return (float) (- constant * getSource(p1) * getCoupling(p2) * p2.getMass() / Math.sqrt(r2));
+	}
+
+	@Override
+	public float computeRawPotentialEnergyPairs(List<Particle> pts) {
+
+		if (solverType == SOLVER.DIRECT && pts == getParticles()) {
+			statics();
+			if (movers != null) return staticEnergy();
+		}
+		if (solverType != SOLVER.FMM || pts.isEmpty()) return super.computeRawPotentialEnergyPairs(pts);
+		for (Particle p : pts) if (!p.isActive()) return super.computeRawPotentialEnergyPairs(pts);
+
+		FastMultipole f = diagnostics().solve(this, pts, null, null, null);
+		double result = 0;
+		for (int i = 0; i < pts.size(); i++) {
+			Particle p = pts.get(i);
+			result += getCoupling(p) * p.getMass() * f.potential(i);
+		}
+		return (float) (- constant * result / 2);
+	}
+	@Override
+	public float computePotentialEnergyPairs(List<Particle> toCompute) {
+
+		if (solverType != SOLVER.FMM) return super.computePotentialEnergyPairs(toCompute);
+		Map<Particle, Boolean> chosen = new IdentityHashMap<Particle, Boolean>();
+		for (Particle p : toCompute) chosen.put(p, true);
+		List<Particle> others = new ArrayList<Particle>();
+		for (Particle p : getParticles()) if (!chosen.containsKey(p)) others.add(p);
+		if (others.size() == getParticles().size()) return 0;
+		return computeRawPotentialEnergyPairs(getParticles()) - computeRawPotentialEnergyPairs(others);
+	}
+
+	@Override
+	public PVector[] accelFields(List<Particle> pts, float[] x, float[] y, float[] z) {
+
+		if (solverType != SOLVER.FMM) return super.accelFields(pts, x, y, z);
+		FastMultipole f = diagnostics().solve(this, sources(pts), x, y, z);
+		double k = constant * getCoupling(getUnit()), out[] = new double[3];
+		PVector[] result = new PVector[x.length];
+		for (int i = 0; i < x.length; i++) {
+			f.acceleration(f.getSources() + i, out);
+			result[i] = new PVector((float) (k * out[0]), (float) (k * out[1]), (float) (k * out[2]));
+		}
+		return result;
+	}
+	@Override
+	public float[] potFields(List<Particle> pts, float[] x, float[] y, float[] z) {
+
+		if (solverType == SOLVER.DIRECT) {
+			statics();
+			if (movers != null) return staticPotFields(pts, x, y, z);
+		}
+		if (solverType != SOLVER.FMM) return super.potFields(pts, x, y, z);
+		FastMultipole f = diagnostics().solve(this, sources(pts), x, y, z);
+		double k = - constant * getCoupling(getUnit());
+		float[] result = new float[x.length];
+		for (int i = 0; i < x.length; i++) result[i] = (float) (k * f.potential(f.getSources() + i));
+		return result;
+	}
+	private List<Particle> sources(List<Particle> pts) {
+		List<Particle> result = new ArrayList<Particle>();
+		for (Particle p : pts) if (p.isIn(this)) result.add(p);
+		return result;
+	}
+	private FastMultipole diagnostics() {
+		if (diagnostics == null || diagnostics.getExpansionOrder() != expansion) diagnostics = new FastMultipole(expansion);
+		return diagnostics;
+	}
+
+	@Override
+	public boolean isSymmetric() {return solverType == SOLVER.DIRECT && movers == null;}
+	@Override
+	public boolean isBatched() {return solverType == SOLVER.DIRECT && movers == null;}
+	@Override
+	public void accelerations(ParticleBatch targets, int from, int to, ParticleBatch sources, float[] out) {
+
+		float[] x = targets.getX(), y = targets.getY(), z = targets.getZ(), m = targets.getMass(), c = targets.getCharge();
+		float[] sx = sources.getX(), sy = sources.getY(), sz = sources.getZ(), q = source == SOURCE.MASS ? sources.getMass() : sources.getCharge();
+		float eps2 = softening * softening, sum[] = new float[3];
+		int n = sources.getSize();
+		for (int i = from; i < to; i++) {
+			sum[0] = sum[1] = sum[2] = 0;
+			if (targets == sources && eps2 == 0) {
+				sum(x[i], y[i], z[i], sx, sy, sz, q, 0, i, eps2, sum);
+				sum(x[i], y[i], z[i], sx, sy, sz, q, i + 1, n, eps2, sum);
+			} else
+				sum(x[i], y[i], z[i], sx, sy, sz, q, 0, n, eps2, sum);
+			float k = constant * (source == SOURCE.MASS ? 1 : - c[i] / m[i]);
+			out[3 * i] += k * sum[0];
+			out[3 * i + 1] += k * sum[1];
+			out[3 * i + 2] += k * sum[2];
+		}
+	}
+	private static void sum(float x, float y, float z, float[] sx, float[] sy, float[] sz, float[] q, int from, int to, float eps2, float[] sum) {
+
+		float ax = 0, ay = 0, az = 0;
+		for (int j = from; j < to; j++) {
+			float dx = sx[j] - x, dy = sy[j] - y, dz = sz[j] - z;
+			float r2 = dx * dx + dy * dy + dz * dz + eps2;
+			float w = q[j] / (r2 * (float) Math.sqrt(r2));
+			ax += w * dx;
+			ay += w * dy;
+			az += w * dz;
+		}
+		sum[0] += ax;
+		sum[1] += ay;
+		sum[2] += az;
+	}
+
+	@Override
+	public Interaction prepare() {
+
+		if (solverType == SOLVER.DIRECT) {
+			statics();
+			return super.prepare();
+		}
+		if (solver == null) solver = solverType == SOLVER.TREE ? new BarnesHut() : new FastMultipole(expansion);
+		solver.build(this);
+		return this;
+	}
+	private void statics() {
+
+		if (!staticField || hasCutoff() || isPeriodic()) {statics = null; movers = null; staticRevision = - 1; return;}
+		if (staticRevision == getRevision()) return;
+		staticRevision = getRevision();
+		movers = null;
+		List<Particle> still = new ArrayList<Particle>(), moving = new ArrayList<Particle>();
+		for (Particle p : getParticles()) {
+			if (!p.isActive()) {statics = null; return;}
+			(p.isDynamic() ? moving : still).add(p);
+		}
+		if (still.isEmpty() || still.size() < moving.size()) {statics = null; return;}
+
+		if (statics == null) statics = new BarnesHut();
+		statics.build(this, still);
+		fixed = new IdentityHashMap<Particle, Boolean>();
+		for (Particle p : still) fixed.put(p, true);
+		fixedEnergy = Double.NaN;
+		if (statics.isValid()) movers = moving.toArray(new Particle[0]);
+	}
+	private float staticEnergy() {
+
+		if (Double.isNaN(fixedEnergy)) {
+			fixedEnergy = 0;
+			for (Particle p : fixed.keySet()) fixedEnergy += getCoupling(p) * p.getMass() * statics.potential(p) / 2;
+		}
+		double result = fixedEnergy, eps2 = (double) softening * softening;
+		for (int i = 0; i < movers.length; i++) {
+			Particle p = movers[i];
+			double x = x(p), y = y(p), z = z(p), u = statics.potential(p);
+			for (int j = i + 1; j < movers.length; j++) {
+				Particle o = movers[j];
+				double dx = x(o) - x, dy = y(o) - y, dz = z(o) - z;
+				u += getSource(o) / Math.sqrt(dx * dx + dy * dy + dz * dz + eps2);
+			}
+			result += getCoupling(p) * p.getMass() * u;
+		}
+		return (float) (- constant * result);
+	}
+	private float[] staticPotFields(List<Particle> pts, float[] x, float[] y, float[] z) {
+
+		List<Particle> rest = new ArrayList<Particle>();
+		int found = 0;
+		for (Particle p : pts) {
+			if (!p.isIn(this)) continue;
+			if (fixed.containsKey(p)) found++;
+			else rest.add(p);
+		}
+		if (found < fixed.size()) return super.potFields(pts, x, y, z);
+
+		double k = - constant * getCoupling(getUnit()), eps2 = (double) softening * softening;
+		float[] result = new float[x.length];
+		for (int i = 0; i < x.length; i++) {
+			double zi = z == null ? 0 : z[i], u = statics.potential(x[i], y[i], zi);
+			for (Particle p : rest) {
+				double dx = x(p) - x[i], dy = y(p) - y[i], dz = z(p) - zi;
+				u += getSource(p) / Math.sqrt(dx * dx + dy * dy + dz * dz + eps2);
+			}
+			result[i] = (float) (k * u);
+		}
+		return result;
+	}
+	private static double x(Particle p) {return p.isDoublePrecision() ? p.getPosD().x : p.getPos().x;}
+	private static double y(Particle p) {return p.isDoublePrecision() ? p.getPosD().y : p.getPos().y;}
+	private static double z(Particle p) {return p.getDim() == Environment.DIMENSION.TWO ? 0 : p.isDoublePrecision() ? p.getPosD().z : p.getPos().z;}
+
+	@Override
+	public boolean accumulate(Particle p, double[] out) {
+
+		if (movers != null) {
+			statics.acceleration(p, out);
+			double x = x(p), y = y(p), z = z(p), eps2 = (double) softening * softening;
+			double ax = out[0], ay = out[1], az = out[2];
+			for (Particle o : movers) {
+				if (o == p) continue;
+				double dx = x(o) - x, dy = y(o) - y, dz = z(o) - z;
+				double r2 = dx * dx + dy * dy + dz * dz + eps2;
+				double f = getSource(o) / (r2 * Math.sqrt(r2));
+				ax += f * dx;
+				ay += f * dy;
+				az += f * dz;
+			}
+			double f = constant * getCoupling(p);
+			out[0] = ax * f;
+			out[1] = ay * f;
+			out[2] = az * f;
+			return true;
+		}
+		if (solver == null || !solver.isValid()) return super.accumulate(p, out);
+		solver.acceleration(p, out);
+		double f = constant * getCoupling(p);
+		out[0] *= f;
+		out[1] *= f;
+		out[2] *= f;
+		return true;
+	}
+
+	public SOURCE getSourceType() {return source;}
+	public float getConstant() {return constant;}
+	public float getSoftening() {return softening;}
+	public float getOpeningAngle() {return theta;}
+	public int getExpansionOrder() {return expansion;}
+	public SOLVER getSolverType() {return solverType;}
+	public FieldSolver getSolver() {return solver;}
+	public BarnesHut getStaticField() {return statics;}
+	public boolean hasStaticField() {return staticField;}
+
+	public InverseSquare setSourceType(SOURCE s) {source = s; touch(); return this;}
+	public InverseSquare setConstant(float c) {constant = c; return this;}
+	public InverseSquare setSoftening(float eps) {softening = eps; touch(); return this;}
+	public InverseSquare setOpeningAngle(float val) {
+		if (val < 0) throw new RuntimeException("Opening angle must not be negative");
+		theta = val; touch(); return this;
+	}
+	public InverseSquare setExpansionOrder(int p) {
+		if (p < 1) throw new RuntimeException("Expansion order must be at least 1");
+		expansion = p; if (solver instanceof FastMultipole) ((FastMultipole) solver).setExpansionOrder(p); return this;
+	}
+	public InverseSquare setSolverType(SOLVER s) {
+		if (s == SOLVER.PM) throw new RuntimeException("The particle-mesh solver needs a box: use setSolver(new ParticleMesh(bounds))");
+		solverType = s; solver = null; unwrappedType = null; return this;
+	}
+	public InverseSquare setSolver(FieldSolver s) {solver = s; solverType = s == null ? SOLVER.DIRECT : s.getType(); unwrappedType = null; return this;}
+	@Override
+	public InverseSquare setPeriodic(Boundaries b) {
+		super.setPeriodic(b);
+		if (b == null) {
+			if (unwrappedType != null) {solver = unwrapped; solverType = unwrappedType;}
+			unwrapped = null; unwrappedType = null;
+			return this;
+		}
+		if (solver instanceof ParticleMesh) {((ParticleMesh) solver).setBoundaries(b); return this;}
+		unwrapped = solver; unwrappedType = solverType;
+		solver = new ParticleMesh(b).setShortRange(true); solverType = SOLVER.PM;
+		return this;
+	}
+	/**
+	 * Caches the field of the non-dynamic particles in a tree that is rebuilt when the revision counter changes. Setters such as
+	 * setPos() bump it, but editing the vector returned by getPos() in place does not, so a fixed particle moved that way keeps
+	 * its old field until something else changes: move fixed particles with setPos().
+	 */
+	public InverseSquare setStaticField(boolean val) {staticField = val; statics = null; movers = null; staticRevision = - 1; return this;}
+	public InverseSquare setTree(boolean val) {return setSolverType(val ? SOLVER.TREE : SOLVER.DIRECT);}
+}
@@ -0,0 +1,245 @@
+package spdsim;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import processing.core.PVector;
+
+public class NeighbourList {
+
+	private Particle[] pts;
+	private double[] x, y, z;
+	private int[] start, list, head, next;
+	private int n, dims, pairs, builds;
+	private double radius, skin;
+	private final Map<Particle, Integer> lookup;
+	private boolean valid;
+
+	public NeighbourList() {
+
+		pts = new Particle[0];
+		x = new double[0];
+		y = new double[0];
+		z = new double[0];
+		start = new int[1];
+		list = new int[0];
+		next = new int[0];
+		lookup = new IdentityHashMap<Particle, Integer>();
+	}
+
+	private NeighbourList ensureParticles(int cap) {
+
+		if (cap <= x.length) return this;
+		int nCap = Math.max(cap, 2 * x.length);
+		pts = Arrays.copyOf(pts, nCap);
+		x = Arrays.copyOf(x, nCap);
+		y = Arrays.copyOf(y, nCap);
+		z = Arrays.copyOf(z, nCap);
+		start = Arrays.copyOf(start, nCap + 1);
+		next = Arrays.copyOf(next, nCap);
+		return this;
+	}
+
+	public NeighbourList update(Interaction inter) {
+
+		List<Particle> particles = inter.getParticles();
+		double r = (double) inter.getCutoff() + inter.getSkin();
+		if (!valid || r != radius || particles.size() != n) {
+			build(inter);
+			return this;
+		}
+
+		double limit = skin * skin / 4;
+		for (int i = 0; i < n; i++) {
+			Particle p = particles.get(i);
+			if (p != pts[i]) {
+				build(inter);
+				return this;
+			}
+			double dx, dy, dz;
+			if (p.isDoublePrecision()) {
+				dx = p.getPosD().x - x[i]; dy = p.getPosD().y - y[i]; dz = dims == 3 ? p.getPosD().z - z[i] : 0;
+			} else {
+				dx = p.getPos().x - x[i]; dy = p.getPos().y - y[i]; dz = dims == 3 ? p.getPos().z - z[i] : 0;
+			}
+			if (dx * dx + dy * dy + dz * dz > limit) {
+				build(inter);
+				return this;
+			}
+		}
+		return this;
+	}
+
+	public NeighbourList build(Interaction inter) {
+
+		List<Particle> particles = inter.getParticles();
+		n = particles.size();
+		skin = inter.getSkin();
+		radius = (double) inter.getCutoff() + skin;
+		lookup.clear();
+		pairs = 0;
+		builds++;
+		valid = true;
+		start[0] = 0;
+		if (n == 0) return this;
+
+		ensureParticles(n);
+		dims = particles.get(0).getDim() == Environment.DIMENSION.TWO ? 2 : 3;
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+		double maxX = - Double.MAX_VALUE, maxY = - Double.MAX_VALUE, maxZ = - Double.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			Particle p = particles.get(i);
+			pts[i] = p;
+			lookup.put(p, i);
+			if (p.isDoublePrecision()) {
+				x[i] = p.getPosD().x; y[i] = p.getPosD().y; z[i] = dims == 3 ? p.getPosD().z : 0;
+			} else {
+				x[i] = p.getPos().x; y[i] = p.getPos().y; z[i] = dims == 3 ? p.getPos().z : 0;
+			}
+			minX = Math.min(minX, x[i]); maxX = Math.max(maxX, x[i]);
+			minY = Math.min(minY, y[i]); maxY = Math.max(maxY, y[i]);
+			minZ = Math.min(minZ, z[i]); maxZ = Math.max(maxZ, z[i]);
+		}
+
+		Boundaries box = inter.getPeriodic();
+		if (box != null) return build(box);
+
+		double size = radius;
+		int cx, cy, cz;
+		while (true) {
+			cx = cells(maxX - minX, size);
+			cy = cells(maxY - minY, size);
+			cz = dims == 3 ? cells(maxZ - minZ, size) : 1;
+			if ((long) cx * cy * cz <= 2L * n + 64) break;
+			size *= 1.25;
+		}
+		int cells = cx * cy * cz;
+		if (head == null || head.length < cells) head = new int[cells];
+		Arrays.fill(head, 0, cells, - 1);
+		for (int i = 0; i < n; i++) {
+			int c = (cell(x[i] - minX, size, cx) * cy + cell(y[i] - minY, size, cy)) * cz + cell(z[i] - minZ, size, cz);
+			next[i] = head[c];
+			head[c] = i;
+		}
+
+		double r2 = radius * radius;
+		for (int i = 0; i < n; i++) {
+			int a = cell(x[i] - minX, size, cx), b = cell(y[i] - minY, size, cy), c = cell(z[i] - minZ, size, cz);
+			for (int na = Math.max(0, a - 1); na <= Math.min(cx - 1, a + 1); na++)
+				for (int nb = Math.max(0, b - 1); nb <= Math.min(cy - 1, b + 1); nb++)
+					for (int nc = Math.max(0, c - 1); nc <= Math.min(cz - 1, c + 1); nc++)
+						for (int j = head[(na * cy + nb) * cz + nc]; j >= 0; j = next[j]) {
+							if (j == i) continue;
+							double dx = x[j] - x[i], dy = y[j] - y[i], dz = z[j] - z[i];
+							if (dx * dx + dy * dy + dz * dz >= r2) continue;
+							if (pairs == list.length) list = Arrays.copyOf(list, Math.max(16, 2 * list.length));
+							list[pairs++] = j;
+						}
+			start[i + 1] = pairs;
+		}
+		return this;
+	}
+	private NeighbourList build(Boundaries box) {
+
+		double lx = box.getConstrainDim().x, ly = box.getConstrainDim().y, lz = dims == 3 ? box.getConstrainDim().z : 1;
+		double x0 = box.getLeftEdge(), y0 = box.getBottomEdge(), z0 = dims == 3 ? box.getLowerEdge() : 0;
+		if (2 * radius >= lx || 2 * radius >= ly || (dims == 3 && 2 * radius >= lz))
+			throw new RuntimeException("Cutoff plus skin (" + radius + ") must be less than half the periodic box");
+		int cx = cells(lx, radius), cy = cells(ly, radius), cz = dims == 3 ? cells(lz, radius) : 1;
+		while ((long) cx * cy * cz > 2L * n + 64) {
+			cx = Math.max(1, cx * 4 / 5);
+			cy = Math.max(1, cy * 4 / 5);
+			if (dims == 3) cz = Math.max(1, cz * 4 / 5);
+		}
+		int cells = cx * cy * cz;
+		if (head == null || head.length < cells) head = new int[cells];
+		Arrays.fill(head, 0, cells, - 1);
+		for (int i = 0; i < n; i++) {
+			int c = (wrap(x[i] - x0, lx, cx) * cy + wrap(y[i] - y0, ly, cy)) * cz + wrap(z[i] - z0, lz, cz);
+			next[i] = head[c];
+			head[c] = i;
+		}
+
+		double r2 = radius * radius;
+		int[] rx = offsets(cx), ry = offsets(cy), rz = offsets(cz);
+		for (int i = 0; i < n; i++) {
+			int a = wrap(x[i] - x0, lx, cx), b = wrap(y[i] - y0, ly, cy), c = wrap(z[i] - z0, lz, cz);
+			for (int da : rx)
+				for (int db : ry)
+					for (int dc : rz) {
+						int na = cx < 3 ? da : Math.floorMod(a + da, cx), nb = cy < 3 ? db : Math.floorMod(b + db, cy), nc = cz < 3 ? dc : Math.floorMod(c + dc, cz);
+						for (int j = head[(na * cy + nb) * cz + nc]; j >= 0; j = next[j]) {
+							if (j == i) continue;
+							double dx = box.imageX(x[j] - x[i]), dy = box.imageY(y[j] - y[i]), dz = dims == 3 ? box.imageZ(z[j] - z[i]) : 0;
+							if (dx * dx + dy * dy + dz * dz >= r2) continue;
+							if (pairs == list.length) list = Arrays.copyOf(list, Math.max(16, 2 * list.length));
+							list[pairs++] = j;
+						}
+					}
+			start[i + 1] = pairs;
+		}
+		return this;
+	}
+	private static int cells(double extent, double size) {return Math.max(1, (int) (extent / size));}
+	private static int wrap(double d, double l, int m) {return Math.floorMod((int) Math.floor(d / l * m), m);}
+	private static int[] offsets(int m) {
+		if (m >= 3) return new int[] {- 1, 0, 1};
+		int[] result = new int[m];
+		for (int i = 0; i < m; i++) result[i] = i;
+		return result;
+	}
+	private static int cell(double d, double size, int m) {return Math.min(m - 1, (int) (d / size));}
+
+	public boolean accumulate(Interaction inter, Particle p, double[] out) {
+
+		Integer i = valid ? lookup.get(p) : null;
+		if (i == null) return false;
+
+		double sx = 0, sy = 0, sz = 0;
+		boolean exact = p.isDoublePrecision();
+		for (int k = start[i]; k < start[i + 1]; k++) {
+			Particle o = pts[list[k]];
+			if (inter.excludes(o, p) || !inter.within(o, p)) continue;
+			if (exact) {
+				PVectorD a = inter.accelerationD(inter.image(o, p), p);
+				sx += a.x; sy += a.y; sz += a.z;
+			} else {
+				PVector a = inter.acceleration(inter.image(o, p), p);
+				sx += a.x; sy += a.y; sz += a.z;
+			}
+		}
+		out[0] = sx;
+		out[1] = sy;
+		out[2] = sz;
+		return true;
+	}
+
+	public float potentialEnergy(Interaction inter, Map<Particle, ?> chosen) {
+
+		float result = 0;
+		for (int i = 0; i < n; i++)
+			for (int k = start[i]; k < start[i + 1]; k++) {
+				int j = list[k];
+				if (j < i || (chosen != null && !chosen.containsKey(pts[i]) && !chosen.containsKey(pts[j]))) continue;
+				if (!inter.excludes(pts[i], pts[j]) && inter.within(pts[i], pts[j]))
+					result += inter.potentialEnergy(inter.image(pts[i], pts[j]), pts[j]);
+			}
+		return result;
+	}
+
+	public int[] getNeighbours(Particle p) {
+		Integer i = valid ? lookup.get(p) : null;
+		if (i == null) return new int[0];
+		return Arrays.copyOfRange(list, start[i], start[i + 1]);
+	}
+	public Particle getParticle(int i) {return pts[i];}
+	public int[] getOffsets() {return start;}
+	public int[] getIndices() {return list;}
+	public int getSize() {return n;}
+	public int getPairs() {return pairs;}
+	public int getBuilds() {return builds;}
+	public boolean isValid() {return valid;}
+	public NeighbourList invalidate() {valid = false; return this;}
+}
@@ -19,6 +19,8 @@ package spdsim;
   Boston, MA  02111-1307  USA
  */
 
+import java.io.Serializable;
+
 import processing.core.PApplet;
 import processing.core.PConstants;
 
@@ -61,7 +63,10 @@ import processing.core.PConstants;
  *
  * @webref math
  */
-public class PVectorD {
+public class PVectorD implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
   /**
    * ( begin auto-generated from PVectorD_x.xml )
    *
@@ -1,18 +1,20 @@
 package spdsim;
 import processing.core.*;
 
-import tensors.Float.*;
-
 import java.util.List;
+import java.util.Arrays;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Objects;
 
 public class Particle implements Serializable {
 	
 	private static final long serialVersionUID = 1L;
 	
+	public static final int INTERACTIONS = 1, EXTERNALS = 2, JOINTS = 4, ALL = 7;
+	
 	private List<Particle> copies;
 	
 	private transient List<Interaction> myInteractions;
@@ -23,11 +25,15 @@ public class Particle implements Serializable {
 	private PVisualizer visual;
 	private Record record;
 	private PVector pos, vel;
+	private PVectorD posD, velD;
 	private String activeLabel;
 	private float radius, mass, charge, massDens, chargeDens;
 	Map<String, ParticleHolder> backups;
 	
-	private Vector k;
+	private double[] k;
+	private transient PVector accel;
+	private transient PVectorD accelD;
+	private transient double[] field;
 	
 	private int color, strokeColor;
 	private float strokeWeight;
@@ -35,11 +41,17 @@ public class Particle implements Serializable {
 	
 	private Environment.DIMENSION dim;
 	
+	private transient ParticleStore store;
+	private transient int index = - 1;
+	private transient int revision;
+	private transient int group = - 1;
+	
 	public Particle(PApplet parent, PVector pos, PVector vel, float massDens, float chargeDens, float radius) {
 				
 		myInteractions = new ArrayList<Interaction>();
 		myExternals = new ArrayList<ExternalForce>();
 		myJoints = new ArrayList<Spring>();
+		accel = new PVector();
 		copies = new ArrayList<Particle>();
 		
 		this.pos = pos;
@@ -49,7 +61,7 @@ public class Particle implements Serializable {
 		this.chargeDens = chargeDens;
 		this.radius = radius;
 		
-		visual = new PVisualizer(this, parent);
+		if (parent != null) visual = new PVisualizer(this, parent);
 		
 		color = - 1;
 		strokeColor = - 1;
@@ -110,12 +122,14 @@ public class Particle implements Serializable {
 		float volume = getVolume();
 		mass =  massDens * volume;
 	    charge = chargeDens * volume;
+	    touch();
 	    return this;
 	}
 	public Particle computeParametersValue() {
 		float volume = getVolume();
 		massDens = mass / volume;
 		chargeDens = charge / volume;
+		touch();
 		return this;
 	}
 	public static Particle unit(PApplet parent, float rd) {return new Particle(parent, 0, 0, 0, 0, 0, 0, 0).unit(rd);}
@@ -140,7 +154,7 @@ public class Particle implements Serializable {
 		
 		dist.setMag(corrMag);
 		pos.add(dist);
-		return this;
+		return moved();
 	}
 	
 	public Particle merge(Particle p) {
@@ -159,76 +173,146 @@ public class Particle implements Serializable {
 	    return computeParametersDensity();
 	}
 	
-	public Vector computeK(float dt, boolean forward, Vector K) {
+	public double[] computeK(double dt, boolean forward, double[] K, double[] out) {
 		
 		if (forward) forward(K);
 		else backward(K);
 		
-		PVector accel = new PVector();
-		for (Interaction inter : myInteractions)
-			for (Particle p : inter.getParticles())
-				if (p != this && isActive(p))
-					accel.add(inter.acceleration(p, this));
-		
-		for (ExternalForce ext : myExternals)
-			accel.add(ext.acceleration(this));
-		
-		for (Spring s : myJoints)
-			accel.add(s.acceleration(this));
-			
-		Vector vec;
-		if (dim == Environment.DIMENSION.TWO)
-			vec = new Vector(new float[] {vel.x, vel.y, accel.x, accel.y});
-		else
-			vec = new Vector(new float[] {vel.x, vel.y, vel.z, accel.x, accel.y, accel.z});
-		vec.mult(dt);
+		computeDerivative(dt, out, 0);
 		
 		if (forward) backward(K);
 		else forward(K);
-		return vec;
+		return out;
 	}
-	private Particle forward2D(Vector K) {
+	public double[] computeDerivative(double dt, double[] out, int offset) {return computeDerivative(dt, out, offset, ALL);}
+	public double[] computeDerivative(double dt, double[] out, int offset, int forces) {
 		
-		pos.x += K.get(0);
-		pos.y += K.get(1);
-		vel.x += K.get(2);
-		vel.y += K.get(3);
-		return this;
+		double ax, ay, az, vx, vy, vz;
+		if (posD != null) {
+			if (accelD == null) accelD = new PVectorD();
+			accelD.set(0, 0, 0);
+			if ((forces & INTERACTIONS) != 0)
+				for (Interaction inter : myInteractions)
+					if (inter.accumulate(this, field()))
+						accelD.add(field[0], field[1], field[2]);
+					else
+						for (Particle p : inter.getParticles())
+							if (p != this && !inter.excludes(p, this) && inter.within(p, this))
+								accelD.add(inter.accelerationD(inter.image(p, this), this));
+			
+			if ((forces & EXTERNALS) != 0)
+				for (ExternalForce ext : myExternals)
+					accelD.add(ext.accelerationD(this));
+			
+			if ((forces & JOINTS) != 0)
+				for (Spring s : myJoints)
+					accelD.add(s.accelerationD(this));
+			
+			ax = accelD.x; ay = accelD.y; az = accelD.z;
+			vx = velD.x; vy = velD.y; vz = velD.z;
+		} else {
+			if (accel == null) accel = new PVector();
+			accel.set(0, 0, 0);
+			if ((forces & INTERACTIONS) != 0)
+				for (Interaction inter : myInteractions)
+					if (inter.accumulate(this, field()))
+						accel.add((float) field[0], (float) field[1], (float) field[2]);
+					else
+						for (Particle p : inter.getParticles())
+							if (p != this && !inter.excludes(p, this) && inter.within(p, this))
+								accel.add(inter.acceleration(inter.image(p, this), this));
+			
+			if ((forces & EXTERNALS) != 0)
+				for (ExternalForce ext : myExternals)
+					accel.add(ext.acceleration(this));
+			
+			if ((forces & JOINTS) != 0)
+				for (Spring s : myJoints)
+					accel.add(s.acceleration(this));
+			
+			ax = accel.x; ay = accel.y; az = accel.z;
+			vx = vel.x; vy = vel.y; vz = vel.z;
+		}
+		
+		if (dim == Environment.DIMENSION.TWO) {
+			out[offset] = vx * dt;
+			out[offset + 1] = vy * dt;
+			out[offset + 2] = ax * dt;
+			out[offset + 3] = ay * dt;
+		} else {
+			out[offset] = vx * dt;
+			out[offset + 1] = vy * dt;
+			out[offset + 2] = vz * dt;
+			out[offset + 3] = ax * dt;
+			out[offset + 4] = ay * dt;
+			out[offset + 5] = az * dt;
+		}
+		return out;
 	}
 	
-	private Particle forward3D(Vector K) {
+	private Particle shift(double[] K, double sign) {
 		
-		pos.x += K.get(0);
-		pos.y += K.get(1);
-		pos.z += K.get(2);
-		vel.x += K.get(3);
-		vel.y += K.get(4);
-		vel.z += K.get(5);
+		int v = dim == Environment.DIMENSION.TWO ? 2 : 3;
+		if (posD != null) {
+			posD.x += sign * K[0];
+			posD.y += sign * K[1];
+			if (v == 3) posD.z += sign * K[2];
+			velD.x += sign * K[v];
+			velD.y += sign * K[v + 1];
+			if (v == 3) velD.z += sign * K[v + 2];
+			return syncFloat();
+		}
+		pos.x += sign * K[0];
+		pos.y += sign * K[1];
+		if (v == 3) pos.z += sign * K[2];
+		vel.x += sign * K[v];
+		vel.y += sign * K[v + 1];
+		if (v == 3) vel.z += sign * K[v + 2];
 		return this;
 	}
 	
-	private Particle backward2D(Vector K) {
-		
-		pos.x -= K.get(0);
-		pos.y -= K.get(1);
-		vel.x -= K.get(2);
-		vel.y -= K.get(3);
+	public Particle forward(double[] K) {return shift(K, 1);}
+	public Particle backward(double[] K) {return shift(K, - 1);}
+	public Particle drift(double f) {
+		if (posD != null) {
+			posD.x += f * velD.x;
+			posD.y += f * velD.y;
+			if (dim == Environment.DIMENSION.THREE) posD.z += f * velD.z;
+			return syncFloat();
+		}
+		pos.x += f * vel.x;
+		pos.y += f * vel.y;
+		if (dim == Environment.DIMENSION.THREE) pos.z += f * vel.z;
 		return this;
 	}
-	
-	private Particle backward3D(Vector K) {
-		
-		pos.x -= K.get(0);
-		pos.y -= K.get(1);
-		pos.z -= K.get(2);
-		vel.x -= K.get(3);
-		vel.y -= K.get(4);
-		vel.z -= K.get(5);
+	public Particle kick(double f, double[] a, int offset) {
+		if (velD != null) {
+			velD.x += f * a[offset];
+			velD.y += f * a[offset + 1];
+			if (dim == Environment.DIMENSION.THREE) velD.z += f * a[offset + 2];
+			return syncFloat();
+		}
+		vel.x += f * a[offset];
+		vel.y += f * a[offset + 1];
+		if (dim == Environment.DIMENSION.THREE) vel.z += f * a[offset + 2];
 		return this;
 	}
 	
-	public Particle forward(Vector K) {if (dim == Environment.DIMENSION.TWO) return forward2D(K); return forward3D(K);}
-	public Particle backward(Vector K) {if (dim == Environment.DIMENSION.TWO) return backward2D(K); return backward3D(K);}
+	private double[] field() {if (field == null) field = new double[3]; return field;}
+	
+	Particle touch() {if (myInteractions != null) for (Interaction inter : myInteractions) inter.touch(); return this;}
+	Particle moved() {return dynamic ? this : touch();}
+	Particle syncFloat() {
+		pos.set((float) posD.x, (float) posD.y, (float) posD.z);
+		vel.set((float) velD.x, (float) velD.y, (float) velD.z);
+		return this;
+	}
+	Particle syncDouble() {
+		if (posD == null) return this;
+		if (pos.x != (float) posD.x || pos.y != (float) posD.y || pos.z != (float) posD.z) posD.set(pos.x, pos.y, pos.z);
+		if (vel.x != (float) velD.x || vel.y != (float) velD.y || vel.z != (float) velD.z) velD.set(vel.x, vel.y, vel.z);
+		return this;
+	}
 	public Particle forward() {if (dynamic) return forward(k); return this;}
 	public Particle backward() {if (dynamic) return backward(k); return this;}
 	
@@ -265,7 +349,7 @@ public class Particle implements Serializable {
 		float result = 0.0f;
 		for (Interaction inter : myInteractions)
 			for (Particle p : inter.getParticles())
-				if (p != this) result += inter.potentialEnergy(p, this);
+				if (p != this) result += inter.potentialEnergy(inter.image(p, this), this);
 		return result;
 	}
 	public float getExternalPotentialEnergy() {
@@ -285,14 +369,15 @@ public class Particle implements Serializable {
 	public float getRelEnergy(List<Particle> pts) {return getPotentialEnergy() + getRelKineticEnergy(pts);}
 	
 	public Particle blindCopy() {
-		Particle p = new Particle(visual.getParent(), pos.copy(), vel.copy(), massDens, chargeDens, radius);
-		p.getVisualizer().setTranslate(visual.getTranslate()).setScaling(visual.getScaling());
+		Particle p = new Particle(visual != null ? visual.getParent() : null, pos.copy(), vel.copy(), massDens, chargeDens, radius);
+		if (visual != null) p.getVisualizer().setTranslate(visual.getTranslate()).setScaling(visual.getScaling()).setTrail(visual.hasTrail());
 		for (PVector pos : record.getPositions()) p.getRecord().getPositions().add(pos.copy());
 		for (PVector vel : record.getVelocities()) p.getRecord().getVelocities().add(vel.copy());
 		for (Float e : record.getEnergies()) p.getRecord().getEnergies().add(e.floatValue());
 		if (record.hasLimitedMemory()) p.getRecord().limitMemory(record.getMemory());
-		p.getVisualizer().setTrail(visual.hasTrail());
-		return p.setDim(dim).setDynamic(dynamic).setActive(active).setColor(color).computeParametersDensity();
+		p.setDim(dim).setDynamic(dynamic).setActive(active).setColor(color).computeParametersDensity();
+		if (posD != null) p.setDoublePrecision(true).setState(posD.x, posD.y, posD.z, velD.x, velD.y, velD.z);
+		return p;
 	}
 	public Particle copy() {
 		Particle p = blindCopy().addCopy(this);
@@ -306,12 +391,19 @@ public class Particle implements Serializable {
 	public List<Particle> getCopies() {return copies;}
 	public Map<String, ParticleHolder> getBackups() {return backups;}
 	public Record getRecord() {return record;}
-	public PVisualizer getVisualizer() {return visual;}
+	public PVisualizer getVisualizer() {if (visual == null) visual = new PVisualizer(this, null); return visual;}
 	public PVector getPos() {return pos;}
 	public PVector getVel() {return vel;}
+	public PVectorD getPosD() {return posD;}
+	public PVectorD getVelD() {return velD;}
 	public String getActiveLabel() {return activeLabel;}
+	/** Id of the active label in the registry of the bound store, or -1 while unbound. */
+	public int getGroup() {return group;}
 	public Particle getLastCopy() {if (!hasCopies()) throw new RuntimeException("No copies!"); return copies.get(copies.size() - 1);}
-	public Vector getK() {return k;}
+	public double[] getK() {return k;}
+	public ParticleStore getStore() {return store;}
+	public int getIndex() {return index;}
+	public int getRevision() {return revision;}
 	public ParticleHolder getBackup(String id) {return backups.get(id);}
 	public Environment.DIMENSION getDim() {return dim;}
 	public int getColor() {return color;}
@@ -326,7 +418,10 @@ public class Particle implements Serializable {
 	public boolean isDynamic() {return dynamic;}
 	public boolean isSelected() {return selected;}
 	public boolean isActive() {return active;}
-	public boolean isActive(Particle p) {if (active || p.isActive()) return true; return !p.getActiveLabel().equals(activeLabel);}
+	public boolean isActive(Particle p) {
+		if (active || p.active) return true;
+		return store != null && store == p.store ? group != p.group : !Objects.equals(activeLabel, p.activeLabel);
+	}
 	public boolean isIn(Interaction inter) {return myInteractions.contains(inter);}
 	public boolean isIn(ExternalForce ext) {return myExternals.contains(ext);}
 	public boolean isIn(Spring s) {return myJoints.contains(s);}
@@ -334,26 +429,44 @@ public class Particle implements Serializable {
 	public boolean hasCopies() {return !copies.isEmpty();}
 	public boolean hasBackup(String id) {return backups.containsKey(id);}
 	public boolean hasStroke() {return stroke;}
+	public boolean isBound() {return store != null;}
+	public boolean hasVisualizer() {return visual != null;}
+	public boolean isDoublePrecision() {return posD != null;}
 	
 	public Particle setBackups(Map<String, ParticleHolder> bckp) {backups = bckp; return this;}
 	public Particle setRecord(Record r) {record = r; return this;}
 	public Particle setVisualizer(PVisualizer pv) {visual = pv; return this;}
-	public Particle setPos(float x, float y) {pos.set(x, y); return this;}
-	public Particle setPos(float x, float y, float z) {pos.set(x, y, z); return this;}
-	public Particle setPos(PVector pos) {this.pos = pos; return this;}
+	public Particle setPos(float x, float y) {pos.set(x, y); return moved();}
+	public Particle setPos(float x, float y, float z) {pos.set(x, y, z); return moved();}
+	public Particle setPos(PVector pos) {this.pos = pos; return moved();}
 	public Particle setVel(float vx, float vy) {vel.set(vx, vy); return this;}
 	public Particle setVel(float vx, float vy, float vz) {vel.set(vx, vy, vz); return this;}
 	public Particle setVel(PVector vel) {this.vel = vel; return this;}
-	public Particle setK(Vector K) {
-		if ((K.getLength() != 4 && K.getLength() != 6) || 
-			(K.getLength() == 4 && dim != Environment.DIMENSION.TWO) || 
-			(K.getLength() == 6 && dim != Environment.DIMENSION.THREE)) throw new RuntimeException("Wrong k dimension");
+	public Particle setState(double x, double y, double z, double vx, double vy, double vz) {
+		if (posD != null) {
+			posD.set(x, y, z);
+			velD.set(vx, vy, vz);
+			return syncFloat().moved();
+		}
+		pos.set((float) x, (float) y, (float) z);
+		vel.set((float) vx, (float) vy, (float) vz);
+		return moved();
+	}
+	public Particle setDoublePrecision(boolean val) {
+		if (!val) {posD = null; velD = null; return touch();}
+		if (posD == null) {posD = new PVectorD(pos.x, pos.y, pos.z); velD = new PVectorD(vel.x, vel.y, vel.z);}
+		return touch();
+	}
+	public Particle setK(double[] K) {
+		if ((K.length != 4 && K.length != 6) || 
+			(K.length == 4 && dim != Environment.DIMENSION.TWO) || 
+			(K.length == 6 && dim != Environment.DIMENSION.THREE)) throw new RuntimeException("Wrong k dimension");
 		k = K;
 		return this;
 	}
-	public Particle setDim(Environment.DIMENSION nDim) {dim = nDim; if (dim == Environment.DIMENSION.THREE) k = new Vector(6); else k = new Vector(4); return this;}
-	public Particle setK(float val) {k.setAll(val); return this;}
-	public Particle setKUnsafe(Vector K) {k = K; return this;}
+	public Particle setDim(Environment.DIMENSION nDim) {dim = nDim; if (dim == Environment.DIMENSION.THREE) k = new double[6]; else k = new double[4]; return touch();}
+	public Particle setK(double val) {Arrays.fill(k, val); return this;}
+	public Particle setKUnsafe(double[] K) {k = K; return this;}
 	public Particle setColor(int col) {color = col; return this;}
 	public Particle setMass(float mass) {this.mass = mass; computeParametersValue(); return this;}
 	public Particle setCharge(float charge) {this.charge = charge; computeParametersValue(); return this;}
@@ -361,23 +474,25 @@ public class Particle implements Serializable {
 	public Particle setChargeDens(float chargeDens) {this.chargeDens = chargeDens; computeParametersDensity(); return this;}
 	public Particle setRadius(float radius) {this.radius = radius; computeParametersDensity(); return this;}
 	public Particle setRadiusRaw(float radius) {this.radius = radius; return this;}
-	public Particle setDynamic(boolean val) {dynamic = val; if (!val) setVel(0, 0, 0); return this;}
+	public Particle setDynamic(boolean val) {dynamic = val; if (!val) {setVel(0, 0, 0); if (velD != null) velD.set(0, 0, 0);} return touch();}
 	public Particle setSelected(boolean val) {selected = val; return this;}
-	public Particle setActive(boolean val) {active = val; return this;}
-	public Particle add(Interaction inter) {if (!isIn(inter)) myInteractions.add(inter); return this;}
-	public Particle add(ExternalForce ext) {if (!isIn(ext)) myExternals.add(ext); return this;}
-	public Particle add(Spring s) {if (!isIn(s)) myJoints.add(s); return this;}
-	public Particle remove(Interaction inter) {myInteractions.remove(inter); return this;}
-	public Particle remove(ExternalForce ext) {myExternals.remove(ext); return this;}
-	public Particle remove(Spring s) {myJoints.remove(s); return this;}
+	public Particle setActive(boolean val) {active = val; return touch();}
+	public Particle add(Interaction inter) {if (!isIn(inter)) {myInteractions.add(inter); revision++;} return this;}
+	public Particle add(ExternalForce ext) {if (!isIn(ext)) {myExternals.add(ext); revision++;} return this;}
+	public Particle add(Spring s) {if (!isIn(s)) {myJoints.add(s); revision++;} return this;}
+	public Particle remove(Interaction inter) {if (myInteractions.remove(inter)) revision++; return this;}
+	public Particle remove(ExternalForce ext) {if (myExternals.remove(ext)) revision++; return this;}
+	public Particle remove(Spring s) {if (myJoints.remove(s)) revision++; return this;}
 	public Particle removeBackup(String id) {backups.remove(id); return this;}
 	public Particle clearBackups() {backups.clear(); return this;}
 	public Particle addCopy(Particle p) {if (!copies.contains(p)) copies.add(p); return this;}
 	public Particle removeCopy(Particle p) {copies.remove(p); return this;}
 	public Particle removeCopies() {copies.clear(); return this;}
-	public Particle setActiveLabel(String a) {activeLabel = a; return this;}
+	public Particle setActiveLabel(String a) {activeLabel = a; if (store != null) group = store.getGroup(a); return this;}
 	public Particle stroke(int col) {stroke = true; strokeColor = col; return this;}
 	public Particle strokeWeight(float w) {strokeWeight = w; return this;}
 	public Particle noStroke() {stroke = false; return this;}
+	Particle bind(ParticleStore s, int i) {if (store != s) group = s.getGroup(activeLabel); store = s; index = i; return this;}
+	Particle unbind() {store = null; index = - 1; group = - 1; return this;}
 }
 
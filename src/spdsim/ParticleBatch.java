@@ -0,0 +1,106 @@
+package spdsim;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class ParticleBatch {
+
+	private Particle[] handles;
+	private float[] x, y, z, vx, vy, vz, mass, charge;
+	private int size;
+	private boolean active, exact;
+
+	public ParticleBatch(int capacity) {
+
+		handles = new Particle[0];
+		x = new float[0];
+		y = new float[0];
+		z = new float[0];
+		vx = new float[0];
+		vy = new float[0];
+		vz = new float[0];
+		mass = new float[0];
+		charge = new float[0];
+		size = 0;
+		ensureCapacity(capacity);
+	}
+	public ParticleBatch() {this(64);}
+
+	public ParticleBatch ensureCapacity(int cap) {
+
+		if (cap <= x.length)
+			return this;
+
+		int nCap = Math.max(cap, 2 * x.length);
+		handles = Arrays.copyOf(handles, nCap);
+		x = Arrays.copyOf(x, nCap);
+		y = Arrays.copyOf(y, nCap);
+		z = Arrays.copyOf(z, nCap);
+		vx = Arrays.copyOf(vx, nCap);
+		vy = Arrays.copyOf(vy, nCap);
+		vz = Arrays.copyOf(vz, nCap);
+		mass = Arrays.copyOf(mass, nCap);
+		charge = Arrays.copyOf(charge, nCap);
+		return this;
+	}
+
+	public ParticleBatch load(List<Particle> pts) {
+
+		resize(pts.size());
+		for (int i = 0; i < size; i++) load(i, pts.get(i));
+		return this;
+	}
+	public ParticleBatch load(ParticleStore store, int[] indices) {
+
+		resize(indices.length);
+		for (int i = 0; i < size; i++) load(i, store.getHandle(indices[i]));
+		return this;
+	}
+	private ParticleBatch resize(int n) {
+
+		ensureCapacity(n);
+		Arrays.fill(handles, n, Math.max(size, n), null);
+		size = n;
+		active = true;
+		exact = false;
+		return this;
+	}
+	private ParticleBatch load(int i, Particle p) {
+
+		handles[i] = p;
+		if (p.isDoublePrecision()) {
+			x[i] = (float) p.getPosD().x;
+			y[i] = (float) p.getPosD().y;
+			z[i] = (float) p.getPosD().z;
+			vx[i] = (float) p.getVelD().x;
+			vy[i] = (float) p.getVelD().y;
+			vz[i] = (float) p.getVelD().z;
+			exact = true;
+		} else {
+			x[i] = p.getPos().x;
+			y[i] = p.getPos().y;
+			z[i] = p.getPos().z;
+			vx[i] = p.getVel().x;
+			vy[i] = p.getVel().y;
+			vz[i] = p.getVel().z;
+		}
+		mass[i] = p.getMass();
+		charge[i] = p.getCharge();
+		active &= p.isActive();
+		return this;
+	}
+
+	public Particle getHandle(int i) {return handles[i];}
+	public float[] getX() {return x;}
+	public float[] getY() {return y;}
+	public float[] getZ() {return z;}
+	public float[] getVX() {return vx;}
+	public float[] getVY() {return vy;}
+	public float[] getVZ() {return vz;}
+	public float[] getMass() {return mass;}
+	public float[] getCharge() {return charge;}
+	public int getSize() {return size;}
+	public boolean isActive() {return active;}
+	public boolean isDoublePrecision() {return exact;}
+	public boolean isEmpty() {return size == 0;}
+}
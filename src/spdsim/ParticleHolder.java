@@ -22,16 +22,17 @@ public class ParticleHolder implements Serializable {
 		prevIntegPos = p.getRecord().getPrevIntegPos().copy();
 		prevDispPos = p.getRecord().getPrevDispPos().copy();
 		vel = p.getVel().copy();
-		translate = p.getVisualizer().getTranslate().copy();
+		translate = p.hasVisualizer() ? p.getVisualizer().getTranslate().copy() : new PVector();
 		
 		radius = p.getRadius();
 		massDens = p.getMassDens();
 		chargeDens = p.getChargeDens();
-		scaling = p.getVisualizer().getScaling();
+		scaling = p.hasVisualizer() ? p.getVisualizer().getScaling() : 1;
 		return this;
 	}
 	public ParticleHolder load(Particle p) {
-		p.setPos(pos.copy()).setVel(vel.copy()).getVisualizer().setTranslate(translate.copy()).setScaling(scaling);
+		p.setPos(pos.copy()).setVel(vel.copy());
+		if (p.hasVisualizer()) p.getVisualizer().setTranslate(translate.copy()).setScaling(scaling);
 		p.getRecord().setPrevIntegPos(prevIntegPos.copy()).setPrevDispPos(prevDispPos.copy());
 		p.setRadius(radius).setMassDens(massDens).setChargeDens(chargeDens).computeParametersDensity();
 		return this;
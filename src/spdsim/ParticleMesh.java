@@ -0,0 +1,343 @@
+package spdsim;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import processing.core.PVector;
+
+public class ParticleMesh extends FieldSolver {
+
+	public enum SCHEME {CIC, TSC;}
+
+	private Boundaries bounds;
+	private SCHEME scheme;
+	private int resolution;
+	private boolean shortRange;
+	private float split;
+
+	private Particle[] pts;
+	private double[] px, py, pz, q, ax, ay, az;
+	private int n, dims;
+	private final Map<Particle, Integer> lookup;
+
+	private int nx, ny, nz;
+	private double x0, y0, z0, lx, ly, lz, hx, hy, hz, rs, cut, eps2;
+	private double[] re, im, scratch, green, gx, gy, gz, kx, ky, kz;
+	private final int[] ix, iy, iz;
+	private final double[] wx, wy, wz;
+	private int[] head, next;
+
+	private boolean valid;
+
+	public ParticleMesh(Boundaries bounds, int resolution) {
+
+		this.bounds = bounds;
+		scheme = SCHEME.CIC;
+		split = 1.25f;
+		shortRange = false;
+		setResolution(resolution);
+		pts = new Particle[0];
+		px = new double[0];
+		py = new double[0];
+		pz = new double[0];
+		q = new double[0];
+		ax = new double[0];
+		ay = new double[0];
+		az = new double[0];
+		lookup = new IdentityHashMap<Particle, Integer>();
+		ix = new int[3]; iy = new int[3]; iz = new int[3];
+		wx = new double[3]; wy = new double[3]; wz = new double[3];
+	}
+	public ParticleMesh(Boundaries bounds) {this(bounds, 64);}
+
+	private ParticleMesh ensureParticles(int cap) {
+
+		if (cap <= px.length) return this;
+		int nCap = Math.max(cap, 2 * px.length);
+		pts = Arrays.copyOf(pts, nCap);
+		px = Arrays.copyOf(px, nCap);
+		py = Arrays.copyOf(py, nCap);
+		pz = Arrays.copyOf(pz, nCap);
+		q = Arrays.copyOf(q, nCap);
+		ax = Arrays.copyOf(ax, nCap);
+		ay = Arrays.copyOf(ay, nCap);
+		az = Arrays.copyOf(az, nCap);
+		next = null;
+		return this;
+	}
+
+	@Override
+	public ParticleMesh build(InverseSquare inter) {
+
+		List<Particle> list = inter.getParticles();
+		n = list.size();
+		valid = false;
+		lookup.clear();
+		if (n == 0) return this;
+		for (Particle p : list) if (!p.isActive()) return this;
+
+		ensureParticles(n);
+		mesh(list.get(0).getDim() == Environment.DIMENSION.TWO ? 2 : 3);
+		eps2 = inter.getSoftening() * inter.getSoftening();
+
+		for (int i = 0; i < n; i++) {
+			Particle p = list.get(i);
+			pts[i] = p;
+			lookup.put(p, i);
+			double x, y, z;
+			if (p.isDoublePrecision()) {
+				x = p.getPosD().x; y = p.getPosD().y; z = p.getPosD().z;
+			} else {
+				x = p.getPos().x; y = p.getPos().y; z = p.getPos().z;
+			}
+			px[i] = wrap(x, x0, lx);
+			py[i] = wrap(y, y0, ly);
+			pz[i] = dims == 3 ? wrap(z, z0, lz) : 0;
+			q[i] = inter.getSource(p);
+			ax[i] = ay[i] = az[i] = 0;
+		}
+
+		Arrays.fill(re, 0);
+		Arrays.fill(im, 0);
+		for (int i = 0; i < n; i++) {
+			int cx = weights(px[i] - x0, hx, nx, ix, wx), cy = weights(py[i] - y0, hy, ny, iy, wy), cz = weights(pz[i] - z0, hz, nz, iz, wz);
+			for (int a = 0; a < cx; a++)
+				for (int b = 0; b < cy; b++)
+					for (int c = 0; c < cz; c++)
+						re[(ix[a] * ny + iy[b]) * nz + iz[c]] += q[i] * wx[a] * wy[b] * wz[c];
+		}
+
+		FFT.transform3D(re, im, nx, ny, nz, false);
+		for (int c = 0; c < re.length; c++) {
+			re[c] *= green[c];
+			im[c] *= green[c];
+		}
+		gradient(kx, gx, 0);
+		gradient(ky, gy, 1);
+		if (dims == 3) gradient(kz, gz, 2);
+
+		for (int i = 0; i < n; i++) {
+			int cx = weights(px[i] - x0, hx, nx, ix, wx), cy = weights(py[i] - y0, hy, ny, iy, wy), cz = weights(pz[i] - z0, hz, nz, iz, wz);
+			double sx = 0, sy = 0, sz = 0;
+			for (int a = 0; a < cx; a++)
+				for (int b = 0; b < cy; b++)
+					for (int c = 0; c < cz; c++) {
+						int k = (ix[a] * ny + iy[b]) * nz + iz[c];
+						double w = wx[a] * wy[b] * wz[c];
+						sx += w * gx[k];
+						sy += w * gy[k];
+						if (dims == 3) sz += w * gz[k];
+					}
+			ax[i] = sx;
+			ay[i] = sy;
+			az[i] = sz;
+		}
+
+		if (shortRange) correct();
+		valid = true;
+		return this;
+	}
+
+	private void mesh(int d) {
+
+		PVector dim = bounds.getConstrainDim();
+		double nlx = dim.x, nly = dim.y, nlz = d == 3 ? dim.z : 1;
+		if (nlx <= 0 || nly <= 0 || nlz <= 0) throw new RuntimeException("Particle-mesh solver needs a box with positive dimensions");
+		double h = Math.max(nlx, Math.max(nly, d == 3 ? nlz : 0)) / resolution;
+		int mx = FFT.nextPowerOfTwo((int) Math.ceil(nlx / h - 1e-9));
+		int my = FFT.nextPowerOfTwo((int) Math.ceil(nly / h - 1e-9));
+		int mz = d == 3 ? FFT.nextPowerOfTwo((int) Math.ceil(nlz / h - 1e-9)) : 1;
+
+		x0 = bounds.getLeftEdge();
+		y0 = bounds.getBottomEdge();
+		z0 = d == 3 ? bounds.getLowerEdge() : 0;
+		if (green != null && d == dims && mx == nx && my == ny && mz == nz && nlx == lx && nly == ly && nlz == lz) return;
+
+		dims = d;
+		nx = mx; ny = my; nz = mz;
+		lx = nlx; ly = nly; lz = nlz;
+		hx = lx / nx; hy = ly / ny; hz = lz / nz;
+		int size = nx * ny * nz;
+		re = new double[size];
+		im = new double[size];
+		scratch = new double[size];
+		gx = new double[size];
+		gy = new double[size];
+		gz = dims == 3 ? new double[size] : null;
+		kx = wavenumbers(nx, lx);
+		ky = wavenumbers(ny, ly);
+		kz = wavenumbers(nz, lz);
+		green = new double[size];
+		head = null;
+		greens();
+	}
+	private void greens() {
+
+		rs = split * Math.max(hx, Math.max(hy, dims == 3 ? hz : 0));
+		cut = 4.5 * rs;
+		int p = scheme == SCHEME.CIC ? 2 : 3;
+		double cell = dims == 3 ? hx * hy * hz : hx * hy;
+		for (int a = 0; a < nx; a++)
+			for (int b = 0; b < ny; b++)
+				for (int c = 0; c < nz; c++) {
+					double k1 = frequency(a, nx, lx), k2 = frequency(b, ny, ly), k3 = dims == 3 ? frequency(c, nz, lz) : 0;
+					double k2s = k1 * k1 + k2 * k2 + k3 * k3, g;
+					if (k2s == 0) g = 0;
+					else if (dims == 3) g = 4 * Math.PI / k2s * (shortRange ? Math.exp(- k2s * rs * rs) : 1);
+					else g = 2 * Math.PI / Math.sqrt(k2s) * erfc(Math.sqrt(k2s) * rs);
+					double w = Math.pow(sinc(k1 * hx / 2) * sinc(k2 * hy / 2) * (dims == 3 ? sinc(k3 * hz / 2) : 1), p);
+					green[(a * ny + b) * nz + c] = g / (w * w) / cell;
+				}
+	}
+	private static double frequency(int i, int m, double l) {return 2 * Math.PI / l * (i <= m / 2 ? i : i - m);}
+	private static double[] wavenumbers(int m, double l) {
+		double[] k = new double[m];
+		for (int i = 0; i < m; i++) k[i] = 2 * i == m ? 0 : frequency(i, m, l);
+		return k;
+	}
+	private static double sinc(double x) {return x == 0 ? 1 : Math.sin(x) / x;}
+	private static double wrap(double x, double lo, double l) {
+		double u = (x - lo) % l;
+		if (u < 0) u += l;
+		return lo + (u >= l ? 0 : u);
+	}
+
+	private void gradient(double[] k, double[] out, int axis) {
+
+		for (int a = 0; a < nx; a++)
+			for (int b = 0; b < ny; b++)
+				for (int c = 0; c < nz; c++) {
+					int i = (a * ny + b) * nz + c;
+					double f = k[axis == 0 ? a : axis == 1 ? b : c];
+					out[i] = - f * im[i];
+					scratch[i] = f * re[i];
+				}
+		FFT.transform3D(out, scratch, nx, ny, nz, true);
+	}
+
+	private int weights(double x, double h, int m, int[] idx, double[] w) {
+
+		if (m == 1) {
+			idx[0] = 0;
+			w[0] = 1;
+			return 1;
+		}
+		double u = x / h - 0.5;
+		if (scheme == SCHEME.CIC) {
+			int i = (int) Math.floor(u);
+			double f = u - i;
+			idx[0] = Math.floorMod(i, m);
+			idx[1] = Math.floorMod(i + 1, m);
+			w[0] = 1 - f;
+			w[1] = f;
+			return 2;
+		}
+		int i = (int) Math.floor(u + 0.5);
+		double d = u - i;
+		idx[0] = Math.floorMod(i - 1, m);
+		idx[1] = Math.floorMod(i, m);
+		idx[2] = Math.floorMod(i + 1, m);
+		w[0] = 0.5 * (0.5 - d) * (0.5 - d);
+		w[1] = 0.75 - d * d;
+		w[2] = 0.5 * (0.5 + d) * (0.5 + d);
+		return 3;
+	}
+
+	private void correct() {
+
+		if (2 * cut >= lx || 2 * cut >= ly || (dims == 3 && 2 * cut >= lz))
+			throw new RuntimeException("P3M real-space cutoff " + cut + " must be less than half the box: raise the resolution or lower the split");
+		int cx = Math.max(1, (int) (lx / cut)), cy = Math.max(1, (int) (ly / cut)), cz = dims == 3 ? Math.max(1, (int) (lz / cut)) : 1;
+		int cells = cx * cy * cz;
+		if (head == null || head.length != cells) head = new int[cells];
+		if (next == null || next.length < n) next = new int[px.length];
+		Arrays.fill(head, - 1);
+		for (int i = 0; i < n; i++) {
+			int c = (cell(px[i] - x0, lx, cx) * cy + cell(py[i] - y0, ly, cy)) * cz + cell(pz[i] - z0, lz, cz);
+			next[i] = head[c];
+			head[c] = i;
+		}
+
+		double cut2 = cut * cut, norm = 1 / (rs * Math.sqrt(Math.PI));
+		int[] rx = neighbours(cx), ry = neighbours(cy), rz = neighbours(cz);
+		for (int i = 0; i < n; i++) {
+			int a = cell(px[i] - x0, lx, cx), b = cell(py[i] - y0, ly, cy), c = cell(pz[i] - z0, lz, cz);
+			for (int da : rx)
+				for (int db : ry)
+					for (int dc : rz) {
+						int na = cx < 3 ? da : Math.floorMod(a + da, cx), nb = cy < 3 ? db : Math.floorMod(b + db, cy), nc = cz < 3 ? dc : Math.floorMod(c + dc, cz);
+						for (int j = head[(na * cy + nb) * cz + nc]; j >= 0; j = next[j]) {
+							if (j <= i) continue;
+							double ex = px[j] - px[i], ey = py[j] - py[i], ez = pz[j] - pz[i];
+							ex -= lx * Math.rint(ex / lx);
+							ey -= ly * Math.rint(ey / ly);
+							if (dims == 3) ez -= lz * Math.rint(ez / lz);
+							double r2 = ex * ex + ey * ey + ez * ez;
+							if (r2 >= cut2 || r2 + eps2 == 0) continue;
+							double r = Math.sqrt(r2), s2 = r2 + eps2;
+							double f = (erfc(r / (2 * rs)) + r * norm * Math.exp(- r2 / (4 * rs * rs))) / (s2 * Math.sqrt(s2));
+							ax[i] += q[j] * f * ex;
+							ay[i] += q[j] * f * ey;
+							az[i] += q[j] * f * ez;
+							ax[j] -= q[i] * f * ex;
+							ay[j] -= q[i] * f * ey;
+							az[j] -= q[i] * f * ez;
+						}
+					}
+		}
+	}
+	private static int cell(double x, double l, int m) {return Math.min(m - 1, (int) (x / l * m));}
+	private static int[] neighbours(int m) {
+		if (m >= 3) return new int[] {- 1, 0, 1};
+		int[] result = new int[m];
+		for (int i = 0; i < m; i++) result[i] = i;
+		return result;
+	}
+
+	static double erfc(double x) {
+
+		double z = Math.abs(x), t = 1 / (1 + 0.5 * z);
+		double r = t * Math.exp(- z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418 + t * (- 0.18628806
+			+ t * (0.27886807 + t * (- 1.13520398 + t * (1.48851587 + t * (- 0.82215223 + t * 0.17087277)))))))));
+		return x >= 0 ? r : 2 - r;
+	}
+
+	@Override
+	public double[] acceleration(Particle p, double[] out) {
+
+		Integer i = lookup.get(p);
+		if (i == null) {
+			out[0] = out[1] = out[2] = 0;
+			return out;
+		}
+		out[0] = ax[i];
+		out[1] = ay[i];
+		out[2] = az[i];
+		return out;
+	}
+
+	public Boundaries getBoundaries() {return bounds;}
+	public SCHEME getScheme() {return scheme;}
+	public int getResolution() {return resolution;}
+	public int[] getGridSize() {return new int[] {nx, ny, nz};}
+	public float getSplit() {return split;}
+	public boolean hasShortRange() {return shortRange;}
+	@Override
+	public boolean isValid() {return valid;}
+	@Override
+	public InverseSquare.SOLVER getType() {return InverseSquare.SOLVER.PM;}
+
+	public ParticleMesh setBoundaries(Boundaries b) {bounds = b; green = null; return this;}
+	public ParticleMesh setScheme(SCHEME s) {scheme = s; green = null; return this;}
+	public ParticleMesh setResolution(int val) {
+		if (val < 2) throw new RuntimeException("Mesh resolution must be at least 2");
+		resolution = val; green = null; return this;
+	}
+	public ParticleMesh setShortRange(boolean val) {shortRange = val; green = null; return this;}
+	public ParticleMesh setSplit(float val) {
+		if (val <= 0) throw new RuntimeException("Split scale must be positive");
+		split = val; green = null; return this;
+	}
+}
@@ -0,0 +1,149 @@
+package spdsim;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Structure-of-arrays snapshot of an Environment's particles. Each Particle still owns its state: load() gathers it
+ * into the arrays at the start of a pass and commit() writes it back, so the store is only current during that pass.
+ */
+public class ParticleStore implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int DYNAMIC = 1, ACTIVE = 2;
+
+	private Particle[] handles;
+	private double[] x, y, z, vx, vy, vz;
+	private float[] mass, charge, radius;
+	private int[] flags;
+	private int size;
+	private final Map<String, Integer> groups = new HashMap<String, Integer>();
+	private final List<String> labels = new ArrayList<String>();
+
+	public ParticleStore(int capacity) {
+
+		handles = new Particle[0];
+		x = new double[0];
+		y = new double[0];
+		z = new double[0];
+		vx = new double[0];
+		vy = new double[0];
+		vz = new double[0];
+		mass = new float[0];
+		charge = new float[0];
+		radius = new float[0];
+		flags = new int[0];
+		size = 0;
+		ensureCapacity(capacity);
+	}
+	public ParticleStore() {this(64);}
+
+	public ParticleStore ensureCapacity(int cap) {
+
+		if (cap <= x.length)
+			return this;
+
+		int nCap = Math.max(cap, 2 * x.length);
+		handles = Arrays.copyOf(handles, nCap);
+		x = Arrays.copyOf(x, nCap);
+		y = Arrays.copyOf(y, nCap);
+		z = Arrays.copyOf(z, nCap);
+		vx = Arrays.copyOf(vx, nCap);
+		vy = Arrays.copyOf(vy, nCap);
+		vz = Arrays.copyOf(vz, nCap);
+		mass = Arrays.copyOf(mass, nCap);
+		charge = Arrays.copyOf(charge, nCap);
+		radius = Arrays.copyOf(radius, nCap);
+		flags = Arrays.copyOf(flags, nCap);
+		return this;
+	}
+
+	public ParticleStore load(List<Particle> pts) {
+
+		ensureCapacity(pts.size());
+		for (int i = pts.size(); i < size; i++)
+			if (handles[i] != null && handles[i].getStore() == this) {
+				handles[i].unbind();
+				handles[i] = null;
+			}
+
+		size = pts.size();
+		for (int i = 0; i < size; i++) {
+			Particle p = pts.get(i);
+			handles[i] = p.bind(this, i);
+			load(i);
+		}
+		return this;
+	}
+	public ParticleStore load(int i) {
+
+		Particle p = handles[i].syncDouble();
+		if (p.isDoublePrecision()) {
+			x[i] = p.getPosD().x;
+			y[i] = p.getPosD().y;
+			z[i] = p.getPosD().z;
+			vx[i] = p.getVelD().x;
+			vy[i] = p.getVelD().y;
+			vz[i] = p.getVelD().z;
+		} else {
+			x[i] = p.getPos().x;
+			y[i] = p.getPos().y;
+			z[i] = p.getPos().z;
+			vx[i] = p.getVel().x;
+			vy[i] = p.getVel().y;
+			vz[i] = p.getVel().z;
+		}
+		mass[i] = p.getMass();
+		charge[i] = p.getCharge();
+		radius[i] = p.getRadius();
+		flags[i] = (p.isDynamic() ? DYNAMIC : 0) | (p.isActive() ? ACTIVE : 0);
+		return this;
+	}
+
+	public ParticleStore commit(int i) {
+		handles[i].setState(x[i], y[i], z[i], vx[i], vy[i], vz[i]);
+		return this;
+	}
+	public ParticleStore commit() {for (int i = 0; i < size; i++) commit(i); return this;}
+
+	public boolean overlaps(int i, int j) {
+		double dx = x[i] - x[j], dy = y[i] - y[j], dz = z[i] - z[j], r = radius[i] + radius[j];
+		return dx * dx + dy * dy + dz * dz < r * r;
+	}
+
+	public Particle getHandle(int i) {return handles[i];}
+	public double[] getX() {return x;}
+	public double[] getY() {return y;}
+	public double[] getZ() {return z;}
+	public double[] getVX() {return vx;}
+	public double[] getVY() {return vy;}
+	public double[] getVZ() {return vz;}
+	public float[] getMass() {return mass;}
+	public float[] getCharge() {return charge;}
+	public float[] getRadius() {return radius;}
+	public int[] getFlags() {return flags;}
+	public int getSize() {return size;}
+	public int getCapacity() {return x.length;}
+	public boolean isDynamic(int i) {return (flags[i] & DYNAMIC) != 0;}
+	public boolean isActive(int i) {return (flags[i] & ACTIVE) != 0;}
+	public boolean isEmpty() {return size == 0;}
+
+	/** Compact id of an active label, assigned on first use. Like the rest of the store it belongs to the thread that drives the Environment, so there is no lock. */
+	public int getGroup(String label) {
+
+		Integer g = groups.get(label);
+		if (g == null) {
+			groups.put(label, g = labels.size());
+			labels.add(label);
+		}
+		return g;
+	}
+	public int findGroup(String label) {Integer g = groups.get(label); return g == null ? - 1 : g;}
+	public String getGroupLabel(int g) {return labels.get(g);}
+	public int getGroupCount() {return labels.size();}
+}
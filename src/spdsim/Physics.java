@@ -1,5 +1,6 @@
 package spdsim;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import processing.core.PVector;
@@ -33,6 +34,33 @@ public abstract class Physics implements Serializable {
 	public static float getPotField(List<Particle> pts, float x, float y) {return getPotField(pts, x, y, 0);}
 	public static float getPotField(List<Particle> pts, PVector pos) {return getPotField(pts, pos.x, pos.y, pos.z);}
 	
+	public static PVector[] getAccelField(List<Particle> pts, float[] x, float[] y, float[] z) {
+		
+		PVector[] result = new PVector[x.length];
+		for (int i = 0; i < x.length; i++) result[i] = new PVector(0, 0, 0);
+		for (Interaction inter : getInteractions(pts)) {
+			PVector[] field = inter.accelFields(pts, x, y, z);
+			for (int i = 0; i < x.length; i++) result[i].add(field[i]);
+		}
+		return result;
+	}
+	public static float[] getPotField(List<Particle> pts, float[] x, float[] y, float[] z) {
+		
+		float[] result = new float[x.length];
+		for (Interaction inter : getInteractions(pts)) {
+			float[] field = inter.potFields(pts, x, y, z);
+			for (int i = 0; i < x.length; i++) result[i] += field[i];
+		}
+		return result;
+	}
+	private static List<Interaction> getInteractions(List<Particle> pts) {
+		List<Interaction> result = new ArrayList<Interaction>();
+		for (Particle p : pts)
+			for (Interaction inter : p.getInteractions())
+				if (!result.contains(inter)) result.add(inter);
+		return result;
+	}
+	
 	public static PVector getCMPos(List<Particle> pts) {
 		
 		PVector cm = new PVector(0, 0, 0);
@@ -120,90 +148,79 @@ public abstract class Physics implements Serializable {
 	public static PVector[][] getAccelField2D(List<Particle> pts, Boundaries bounds, int detail) {
 		
 		if (detail < 2) throw new RuntimeException("Detail must be greater than 1");
-		float left = bounds.getLeftEdge(), right = bounds.getRightEdge(), bottom = bounds.getBottomEdge(), top = bounds.getTopEdge();
-		
-		float dx = (right - left) / (detail - 1);
-		float dy = (top - bottom) / (detail - 1);
+		float[][] grid = getGrid2D(bounds, detail);
+		PVector[] field = getAccelField(pts, grid[0], grid[1], null);
 		PVector[][] result = new PVector[detail][detail];
-		for (int i = 0; i < detail; i++) {
-			
-			float x = left + dx * i;
-			for (int j = 0; j < detail; j++) {
-				
-				float y = bottom + dy * j;
-				result[i][j] = getAccelField(pts, x, y);
-			}
-		}
+		for (int i = 0; i < detail; i++)
+			for (int j = 0; j < detail; j++)
+				result[i][j] = field[i * detail + j];
 		return result;
 	}
 	public static PVector[][][] getAccelField3D(List<Particle> pts, Boundaries bounds, int detail) {
 		
 		if (detail < 2) throw new RuntimeException("Detail must be greater than 1");
-		float left = bounds.getLeftEdge(), right = bounds.getRightEdge(), bottom = bounds.getBottomEdge(), top = bounds.getTopEdge();
-		float lower = bounds.getLowerEdge(), upper = bounds.getUpperEdge();
-		
-		float dx = (right - left) / (detail - 1);
-		float dy = (top - bottom) / (detail - 1);
-		float dz = (upper - lower) / (detail - 1);
+		float[][] grid = getGrid3D(bounds, detail);
+		PVector[] field = getAccelField(pts, grid[0], grid[1], grid[2]);
 		PVector[][][] result = new PVector[detail][detail][detail];
-		for (int i = 0; i < detail; i++) {
-			
-			float x = left + dx * i;
-			for (int j = 0; j < detail; j++) {
-				
-				float y = bottom + dy * j;
-				for (int k = 0; k < detail; k++) {
-					
-					float z = lower + dz * k;
-					result[i][j][k] = getAccelField(pts, x, y, z);
-				}
-			}
-		}
+		for (int i = 0; i < detail; i++)
+			for (int j = 0; j < detail; j++)
+				for (int k = 0; k < detail; k++)
+					result[i][j][k] = field[(i * detail + j) * detail + k];
 		return result;
 	}
 	public static float[][] getPotField2D(List<Particle> pts, Boundaries bounds, int detail) {
 		
 		if (detail < 2) throw new RuntimeException("Detail must be greater than 1");
-		float left = bounds.getLeftEdge(), right = bounds.getRightEdge(), bottom = bounds.getBottomEdge(), top = bounds.getTopEdge();
-		
-		float dx = (right - left) / (detail - 1);
-		float dy = (top - bottom) / (detail - 1);
+		float[][] grid = getGrid2D(bounds, detail);
+		float[] field = getPotField(pts, grid[0], grid[1], null);
 		float[][] result = new float[detail][detail];
-		for (int i = 0; i < detail; i++) {
-			
-			float x = left + dx * i;
-			for (int j = 0; j < detail; j++) {
-				
-				float y = bottom + dy * j;
-				result[i][j] = getPotField(pts, x, y);
-			}
-		}
+		for (int i = 0; i < detail; i++)
+			for (int j = 0; j < detail; j++)
+				result[i][j] = field[i * detail + j];
 		return result;
 	}	
 	public static float[][][] getPotField3D(List<Particle> pts, Boundaries bounds, int detail) {
 		
 		if (detail < 2) throw new RuntimeException("Detail must be greater than 1");
+		float[][] grid = getGrid3D(bounds, detail);
+		float[] field = getPotField(pts, grid[0], grid[1], grid[2]);
+		float[][][] result = new float[detail][detail][detail];
+		for (int i = 0; i < detail; i++)
+			for (int j = 0; j < detail; j++)
+				for (int k = 0; k < detail; k++)
+					result[i][j][k] = field[(i * detail + j) * detail + k];
+		return result;
+	}
+	
+	private static float[][] getGrid2D(Boundaries bounds, int detail) {
+		
 		float left = bounds.getLeftEdge(), right = bounds.getRightEdge(), bottom = bounds.getBottomEdge(), top = bounds.getTopEdge();
-		float lower = bounds.getLowerEdge(), upper = bounds.getUpperEdge();
+		float dx = (right - left) / (detail - 1);
+		float dy = (top - bottom) / (detail - 1);
+		float[][] grid = new float[2][detail * detail];
+		for (int i = 0; i < detail; i++)
+			for (int j = 0; j < detail; j++) {
+				grid[0][i * detail + j] = left + dx * i;
+				grid[1][i * detail + j] = bottom + dy * j;
+			}
+		return grid;
+	}
+	private static float[][] getGrid3D(Boundaries bounds, int detail) {
 		
+		float left = bounds.getLeftEdge(), right = bounds.getRightEdge(), bottom = bounds.getBottomEdge(), top = bounds.getTopEdge();
+		float lower = bounds.getLowerEdge(), upper = bounds.getUpperEdge();
 		float dx = (right - left) / (detail - 1);
 		float dy = (top - bottom) / (detail - 1);
 		float dz = (upper - lower) / (detail - 1);
-		float[][][] result = new float[detail][detail][detail];
-		for (int i = 0; i < detail; i++) {
-			
-			float x = left + dx * i;
-			for (int j = 0; j < detail; j++) {
-				
-				float y = bottom + dy * j;
+		float[][] grid = new float[3][detail * detail * detail];
+		for (int i = 0; i < detail; i++)
+			for (int j = 0; j < detail; j++)
 				for (int k = 0; k < detail; k++) {
-					
-					float z = lower + dz * k;
-					result[i][j][k] = getPotField(pts, x, y, z);
+					int c = (i * detail + j) * detail + k;
+					grid[0][c] = left + dx * i;
+					grid[1][c] = bottom + dy * j;
+					grid[2][c] = lower + dz * k;
 				}
-			}
-		}
-		return result;
-		
+		return grid;
 	}
 }
@@ -27,12 +27,14 @@ public class Record implements Serializable {
 		limMemory = false;
 	}
 	
-	public Record saveIntegPos() {prevIntegPos = p.getPos().copy(); return this;}
+	public Record saveIntegPos() {prevIntegPos.set(p.getPos()); return this;}
 	public Record saveDispPos() {prevDispPos = p.getPos().copy(); return this;}
 	
-	public Record savePosition() {posRecord.add(p.getPos().copy()); while (posRecord.size() > memory && limMemory) posRecord.remove(0); return this;}
+	public Record savePosition() {return savePosition(p.getPos().copy());}
+	public Record savePosition(PVector pos) {posRecord.add(pos); while (posRecord.size() > memory && limMemory) posRecord.remove(0); return this;}
 	public Record saveRelPosition(List<Particle> rel) {posRecord.add(p.getRelPos(rel)); while (posRecord.size() > memory && limMemory) posRecord.remove(0); return this;}
-	public Record saveVelocity() {velRecord.add(p.getVel().copy()); while (velRecord.size() > memory && limMemory) velRecord.remove(0); return this;}
+	public Record saveVelocity() {return saveVelocity(p.getVel().copy());}
+	public Record saveVelocity(PVector vel) {velRecord.add(vel); while (velRecord.size() > memory && limMemory) velRecord.remove(0); return this;}
 	public Record saveRelVelocity(List<Particle> rel) {velRecord.add(p.getRelVel(rel)); while (velRecord.size() > memory && limMemory) velRecord.remove(0); return this;}
 	public Record saveEnergy() {energyRecord.add(p.getEnergy()); while (energyRecord.size() > memory && limMemory) energyRecord.remove(0); return this;}
 	public Record saveRelEnergy(List<Particle> rel) {energyRecord.add(p.getRelEnergy(rel)); while (energyRecord.size() > memory && limMemory) energyRecord.remove(0); return this;}
@@ -1,7 +1,8 @@
 package spdsim;
 import java.io.Serializable;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.ArrayList;
+import java.util.Map;
 import processing.core.*;
 
 public class Spring implements Serializable {
@@ -11,6 +12,10 @@ public class Spring implements Serializable {
 	private Particle p1, p2;
 	private float stiffness, length, dampening, lengthUnitFactor, thickness;
 	private int decay, terms, color;
+	private transient double fx, fy, fz;
+	private transient double[] series;
+	private transient boolean evaluated;
+	private transient int revision;
 	
 	public Spring(Particle p1, Particle p2, float stiffness, float length, int terms, int decay) {
 		this.p1 = p1;
@@ -49,15 +54,16 @@ public class Spring implements Serializable {
 			throw new RuntimeException("Spring has missing or no particles attached");
 		if (p != p1 && p != p2)
 			throw new RuntimeException("Particle does not belong to spring");
+		if (evaluated) {
+			double f = (p == p1 ? 1 : - 1) / p.getMass();
+			return new PVector((float) (fx * f), (float) (fy * f), (float) (fz * f));
+		}
 		
 		Particle chosen = p == p1 ? p1 : p2;
 		Particle other = p == p1 ? p2 : p1;
 		
-		float factor = 1, dist = other.getPos().dist(chosen.getPos()) - length;
-		for (int i = 1; i < terms; i++)
-			factor += (float) Math.pow(dist / lengthUnitFactor, 2 * i) / (float) Math.pow(2 * i, decay);
-		
-		factor *= stiffness / chosen.getMass();
+		float dist = other.getPos().dist(chosen.getPos()) - length;
+		float factor = (float) factor(dist) / chosen.getMass();
 		
 		PVector diff = PVector.sub(other.getPos(), chosen.getPos());
 		PVector lenDir = diff.copy().setMag(length);
@@ -70,6 +76,34 @@ public class Spring implements Serializable {
 		
 		return diff.sub(lenDir).mult(factor);
 	}
+	public PVectorD accelerationD(Particle p) {
+		if (!isReady())
+			throw new RuntimeException("Spring has missing or no particles attached");
+		if (p != p1 && p != p2)
+			throw new RuntimeException("Particle does not belong to spring");
+		if (evaluated) {
+			double f = (p == p1 ? 1 : - 1) / p.getMass();
+			return new PVectorD(fx * f, fy * f, fz * f);
+		}
+		
+		Particle chosen = p == p1 ? p1 : p2;
+		Particle other = p == p1 ? p2 : p1;
+		
+		PVectorD diff = PVectorD.sub(exactPos(other), exactPos(chosen));
+		double mag = diff.mag(), dist = mag - length;
+		double factor = factor(dist) / chosen.getMass();
+		
+		PVectorD lenDir = diff.copy().setMag(length);
+		if (dampening > 0) {
+			PVectorD dir = diff.copy().div(mag);
+			PVectorD relVelProj = dir.mult(PVectorD.sub(exactVel(other), exactVel(chosen)).dot(dir) * dampening / chosen.getMass());
+			diff.add(relVelProj);
+		}
+		
+		return diff.sub(lenDir).mult(factor);
+	}
+	private static PVectorD exactPos(Particle p) {return p.isDoublePrecision() ? p.getPosD() : new PVectorD(p.getPos().x, p.getPos().y, p.getPos().z);}
+	private static PVectorD exactVel(Particle p) {return p.isDoublePrecision() ? p.getVelD() : new PVectorD(p.getVel().x, p.getVel().y, p.getVel().z);}
 	public PVector acceleration(int index) {
 		if (index != 0 && index != 1)
 			throw new RuntimeException("Index must be 0 or 1");
@@ -77,6 +111,22 @@ public class Spring implements Serializable {
 		Particle chosen = index == 0 ? p1 : p2;
 		return acceleration(chosen);
 	}
+	public Spring evaluate() {
+		evaluated = false;
+		if (!isReady() || p1.getMass() == 0 || p2.getMass() == 0 || (dampening > 0 && p1.getMass() != p2.getMass())) return this;
+		if (p1.isDoublePrecision() && p2.isDoublePrecision()) {
+			PVectorD a = accelerationD(p1);
+			fx = a.x * p1.getMass(); fy = a.y * p1.getMass(); fz = a.z * p1.getMass();
+		} else {
+			PVector a = acceleration(p1);
+			fx = a.x * p1.getMass(); fy = a.y * p1.getMass(); fz = a.z * p1.getMass();
+		}
+		evaluated = true;
+		return this;
+	}
+	public Spring release() {evaluated = false; return this;}
+	public boolean isEvaluated() {return evaluated;}
+	
 	public float potentialEnergy() {
 		if (!isReady())
 			throw new RuntimeException("Spring has missing or no particles attached");
@@ -85,27 +135,46 @@ public class Spring implements Serializable {
 		PVector lenDir = diff.copy().setMag(length);
 		float dist = diff.sub(lenDir).mag();
 		
-		float result = dist * dist / 2;
-		for (int i = 1; i < terms; i++)
-			result += (float) Math.pow(dist / lengthUnitFactor, 2 * (i + 1)) / (2 * (i + 1) * Math.pow(2 * i, decay));
-		
-		result *= stiffness;
-		return result;
+		return (float) energy(dist);
 	}
 	public static float potentialEnergyPairs(List<Particle> pts) {
-		List<Spring> springs = new ArrayList<Spring>();
+		Map<Spring, Boolean> springs = new IdentityHashMap<Spring, Boolean>();
+		float result = 0;
 		for (Particle p : pts)
 			for (Spring s : p.getJoints())
-				if (!springs.contains(s))
-					springs.add(s);
-		
-		float result = 0;
-		for (Spring s : springs)
-			result += s.potentialEnergy();
+				if (springs.put(s, true) == null)
+					result += s.potentialEnergy();
 		
 		return result;
 	}
 	
+	public double[] getSeries() {
+		if (series != null && series.length == 2 * Math.max(terms, 1)) return series;
+		int n = Math.max(terms, 1);
+		double[] c = new double[2 * n];
+		c[0] = 1;
+		for (int i = 1; i < n; i++) {
+			c[i] = 1 / Math.pow(2 * i, decay);
+			c[n + i] = 1 / (2 * (i + 1) * Math.pow(2 * i, decay));
+		}
+		return series = c;
+	}
+	public static double horner(double[] c, int from, int n, double x) {
+		double result = 0;
+		for (int i = from + n - 1; i >= from; i--) result = result * x + c[i];
+		return result;
+	}
+	public double factor(double dist) {
+		double[] c = getSeries();
+		double x = dist / lengthUnitFactor;
+		return stiffness * horner(c, 0, c.length / 2, x * x);
+	}
+	public double energy(double dist) {
+		double[] c = getSeries();
+		double x = dist / lengthUnitFactor;
+		return stiffness * (dist * dist / 2 + x * x * horner(c, c.length / 2, c.length / 2, x * x));
+	}
+	
 	public Particle get(int index) {return index == 0 ? p1 : (index == 1 ? p2 : null);}
 	public Particle getFirst() {return p1;}
 	public Particle getSecond() {return p2;}
@@ -119,6 +188,7 @@ public class Spring implements Serializable {
 	public int getDecay() {return decay;}
 	public int getIndex(Particle p) {return p == p1 ? 0 : (p == p2 ? 1 : - 1);}
 	public int getColor() {return color;}
+	public int getRevision() {return revision;}
 	public boolean isReady() {return p1 != null && p2 != null;}
 	public boolean contains(Particle p) {return p == p1 || p == p2;}
 	public boolean contains(Particle p1, Particle p2) {return contains(p1) && contains(p2);}
@@ -132,12 +202,12 @@ public class Spring implements Serializable {
 		return this;
 	}
 	public Spring attach(Particle p1, Particle p2) {detach(); this.p1 = p1.add(this); this.p2 = p2.add(this); return this;}
-	public Spring setStiffness(float s) {stiffness = s; return this;}
-	public Spring setLength(float l) {length = l; return this;}
-	public Spring setDecay(int d) {decay = d; return this;}
-	public Spring setTerms(int t) {terms = t; return this;}
-	public Spring setDampening(float damp) {dampening = damp; return this;}
-	public Spring setLengthUnitFactor(float fact) {lengthUnitFactor = fact; return this;}
+	public Spring setStiffness(float s) {stiffness = s; revision++; return this;}
+	public Spring setLength(float l) {length = l; revision++; return this;}
+	public Spring setDecay(int d) {decay = d; series = null; revision++; return this;}
+	public Spring setTerms(int t) {terms = t; series = null; revision++; return this;}
+	public Spring setDampening(float damp) {dampening = damp; revision++; return this;}
+	public Spring setLengthUnitFactor(float fact) {lengthUnitFactor = fact; revision++; return this;}
 	public Spring setThickness(float t) {thickness = t; return this;}
 	public Spring setColor(int col) {color = col; return this;}
 }
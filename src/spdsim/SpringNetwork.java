@@ -0,0 +1,158 @@
+package spdsim;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SpringNetwork {
+
+	private final Spring[] springs;
+	private final Particle[] handles;
+	private final int[] revisions, start, first, second, offset, order, nodes;
+	private final double[] stiffness, length, damping, unit, coef;
+	private final double[] x, y, z, vx, vy, vz;
+	private final boolean damped;
+
+	public SpringNetwork(ParticleStore store, List<Spring> list) {
+
+		int n = store.getSize(), m = list.size();
+		handles = new Particle[n];
+		for (int i = 0; i < n; i++) handles[i] = store.getHandle(i);
+		start = new int[n + 1];
+		for (Spring s : list) {
+			if (!isBound(store, s)) throw new RuntimeException("Spring is not bound to the store");
+			start[s.getFirst().getIndex() + 1]++;
+		}
+		for (int i = 0; i < n; i++) start[i + 1] += start[i];
+
+		springs = new Spring[m];
+		int[] fill = Arrays.copyOf(start, n);
+		for (Spring s : list) springs[fill[s.getFirst().getIndex()]++] = s;
+
+		revisions = new int[m];
+		first = new int[m];
+		second = new int[m];
+		offset = new int[m];
+		order = new int[m];
+		stiffness = new double[m];
+		length = new double[m];
+		damping = new double[m];
+		unit = new double[m];
+		Map<String, Integer> shared = new HashMap<String, Integer>();
+		double[] table = new double[0];
+		boolean[] used = new boolean[n];
+		boolean anyDamped = false;
+		for (int e = 0; e < m; e++) {
+			Spring s = springs[e];
+			revisions[e] = s.getRevision();
+			first[e] = s.getFirst().getIndex();
+			second[e] = s.getSecond().getIndex();
+			used[first[e]] = used[second[e]] = true;
+			stiffness[e] = s.getStiffness();
+			length[e] = s.getLength();
+			damping[e] = s.getDampening();
+			unit[e] = s.getLengthUnitFactor();
+			anyDamped |= damping[e] > 0;
+
+			double[] series = s.getSeries();
+			String key = Arrays.toString(series);
+			Integer at = shared.get(key);
+			if (at == null) {
+				at = table.length;
+				table = Arrays.copyOf(table, table.length + series.length);
+				System.arraycopy(series, 0, table, at, series.length);
+				shared.put(key, at);
+			}
+			offset[e] = at;
+			order[e] = series.length / 2;
+		}
+		coef = table;
+		damped = anyDamped;
+
+		int count = 0;
+		for (boolean u : used) if (u) count++;
+		nodes = new int[count];
+		for (int i = 0, k = 0; i < n; i++) if (used[i]) nodes[k++] = i;
+		x = new double[n];
+		y = new double[n];
+		z = new double[n];
+		vx = damped ? new double[n] : null;
+		vy = damped ? new double[n] : null;
+		vz = damped ? new double[n] : null;
+	}
+
+	public static boolean isBound(ParticleStore store, Spring s) {
+		return s.isReady() && s.getFirst().getStore() == store && s.getSecond().getStore() == store && s.getFirst().isIn(s) && s.getSecond().isIn(s);
+	}
+
+	public boolean matches(ParticleStore store) {
+		if (store.getSize() != handles.length) return false;
+		for (int e = 0; e < springs.length; e++)
+			if (springs[e].getRevision() != revisions[e] || springs[e].getFirst() != handles[first[e]] || springs[e].getSecond() != handles[second[e]]) return false;
+		return true;
+	}
+
+	private SpringNetwork gather(ParticleStore store) {
+		for (int i : nodes) {
+			Particle p = store.getHandle(i);
+			if (p.isDoublePrecision()) {
+				x[i] = p.getPosD().x; y[i] = p.getPosD().y; z[i] = p.getPosD().z;
+				if (damped) {vx[i] = p.getVelD().x; vy[i] = p.getVelD().y; vz[i] = p.getVelD().z;}
+			} else {
+				x[i] = p.getPos().x; y[i] = p.getPos().y; z[i] = p.getPos().z;
+				if (damped) {vx[i] = p.getVel().x; vy[i] = p.getVel().y; vz[i] = p.getVel().z;}
+			}
+		}
+		return this;
+	}
+
+	public SpringNetwork evaluate(ParticleStore store, double[] accel) {
+
+		gather(store);
+		float[] mass = store.getMass();
+		for (int e = 0; e < springs.length; e++) {
+			int i = first[e], j = second[e];
+			double dx = x[j] - x[i], dy = y[j] - y[i], dz = z[j] - z[i];
+			double mag = Math.sqrt(dx * dx + dy * dy + dz * dz);
+			if (mag == 0) continue;
+			dx /= mag; dy /= mag; dz /= mag;
+			double dist = mag - length[e], u = dist / unit[e];
+			double w = stiffness[e] * Spring.horner(coef, offset[e], order[e], u * u);
+			double proj = damping[e] > 0 ? damping[e] * ((vx[j] - vx[i]) * dx + (vy[j] - vy[i]) * dy + (vz[j] - vz[i]) * dz) : 0;
+			if (store.isDynamic(i)) {
+				double f = w * (dist + proj / mass[i]) / mass[i];
+				accel[3 * i] += f * dx;
+				accel[3 * i + 1] += f * dy;
+				accel[3 * i + 2] += f * dz;
+			}
+			if (store.isDynamic(j)) {
+				double f = w * (dist + proj / mass[j]) / mass[j];
+				accel[3 * j] -= f * dx;
+				accel[3 * j + 1] -= f * dy;
+				accel[3 * j + 2] -= f * dz;
+			}
+		}
+		return this;
+	}
+
+	public double potentialEnergy(ParticleStore store) {
+
+		gather(store);
+		double result = 0;
+		for (int e = 0; e < springs.length; e++) {
+			int i = first[e], j = second[e];
+			double dx = x[j] - x[i], dy = y[j] - y[i], dz = z[j] - z[i];
+			double dist = Math.sqrt(dx * dx + dy * dy + dz * dz) - length[e], u = dist / unit[e];
+			result += stiffness[e] * (dist * dist / 2 + u * u * Spring.horner(coef, offset[e] + order[e], order[e], u * u));
+		}
+		return result;
+	}
+
+	public Spring[] getSprings() {return springs;}
+	public int[] getOffsets() {return start;}
+	public int[] getFirst() {return first;}
+	public int[] getSecond() {return second;}
+	public int getSize() {return springs.length;}
+	public boolean isDamped() {return damped;}
+}
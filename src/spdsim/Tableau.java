@@ -0,0 +1,125 @@
+package spdsim;
+
+import java.io.Serializable;
+
+public class Tableau implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final double SQ21 = Math.sqrt(21);
+
+	public static final Tableau EULER = new Tableau(1, new double[][] {{}}, new double[] {1});
+
+	public static final Tableau RK4 = new Tableau(4, new double[][] {
+		{},
+		{1.0 / 2},
+		{0, 1.0 / 2},
+		{0, 0, 1}},
+		new double[] {1.0 / 6, 1.0 / 3, 1.0 / 3, 1.0 / 6});
+
+	public static final Tableau RK6 = new Tableau(6, new double[][] {
+		{},
+		{1},
+		{3.0 / 8, 1.0 / 8},
+		{8.0 / 27, 2.0 / 27, 8.0 / 27},
+		{3 * (3 * SQ21 - 7) / 392, - 8 * (7 - SQ21) / 392, 48 * (7 - SQ21) / 392, - 3 * (21 - SQ21) / 392},
+		{- 5 * (231 + 51 * SQ21) / 1960, - 40 * (7 + SQ21) / 1960, - 320 * SQ21 / 1960, 3 * (21 + 121 * SQ21) / 1960, 392 * (6 + SQ21) / 1960},
+		{15 * (22 + 7 * SQ21) / 180, 120.0 / 180, 40 * (7 * SQ21 - 5) / 180, - 63 * (3 * SQ21 - 2) / 180, - 14 * (49 + 9 * SQ21) / 180, 70 * (7 - SQ21) / 180}},
+		new double[] {9.0 / 180, 0, 64.0 / 180, 0, 49.0 / 180, 49.0 / 180, 9.0 / 180});
+
+	public static final Tableau RKF45 = new Tableau(4, new double[][] {
+		{},
+		{1.0 / 4},
+		{3.0 / 32, 9.0 / 32},
+		{1932.0 / 2197, - 7200.0 / 2197, 7296.0 / 2197},
+		{439.0 / 216, - 8, 3680.0 / 513, - 845.0 / 4104},
+		{- 8.0 / 27, 2, - 3544.0 / 2565, 1859.0 / 4104, - 11.0 / 40}},
+		new double[] {16.0 / 135, 0, 6656.0 / 12825, 28561.0 / 56430, - 9.0 / 50, 2.0 / 55},
+		new double[] {25.0 / 216, 0, 1408.0 / 2565, 2197.0 / 4104, - 1.0 / 5, 0});
+
+	public static final Tableau CK45 = new Tableau(4, new double[][] {
+		{},
+		{1.0 / 5},
+		{3.0 / 40, 9.0 / 40},
+		{3.0 / 10, - 9.0 / 10, 12.0 / 10},
+		{- 11.0 / 54, 5.0 / 2, - 70.0 / 27, 35.0 / 27},
+		{1631.0 / 55296, 175.0 / 512, 575.0 / 13824, 44275.0 / 110592, 253.0 / 4096}},
+		new double[] {37.0 / 378, 0, 250.0 / 621, 125.0 / 594, 0, 512.0 / 1771},
+		new double[] {2825.0 / 27648, 0, 18575.0 / 48384, 13525.0 / 55296, 277.0 / 14336, 1.0 / 4});
+
+	public static final Tableau DOPRI45 = new Tableau(4, new double[][] {
+		{},
+		{1.0 / 5},
+		{3.0 / 40, 9.0 / 40},
+		{44.0 / 45, - 56.0 / 15, 32.0 / 9},
+		{19372.0 / 6561, - 25360.0 / 2187, 64448.0 / 6561, - 212.0 / 729},
+		{9017.0 / 3168, - 355.0 / 33, 46732.0 / 5247, 49.0 / 176, - 5103.0 / 18656},
+		{35.0 / 384, 0, 500.0 / 1113, 125.0 / 192, - 2187.0 / 6784, 11.0 / 84}},
+		new double[] {35.0 / 384, 0, 500.0 / 1113, 125.0 / 192, - 2187.0 / 6784, 11.0 / 84, 0},
+		new double[] {5179.0 / 57600, 0, 7571.0 / 16695, 393.0 / 640, - 92097.0 / 339200, 187.0 / 2100, 1.0 / 40},
+		new double[][] {
+			{1, - 8048581381.0 / 2820520608L, 8663915743.0 / 2820520608L, - 12715105075.0 / 11282082432L},
+			{0, 0, 0, 0},
+			{0, 131558114200.0 / 32700410799L, - 68118460800.0 / 10900136933L, 87487479700.0 / 32700410799L},
+			{0, - 1754552775.0 / 470086768, 14199869525.0 / 1410260304, - 10690763975.0 / 1880347072},
+			{0, 127303824393.0 / 49829197408L, - 318862633887.0 / 49829197408L, 701980252875.0 / 199316789632L},
+			{0, - 282668133.0 / 205662961, 2019193451.0 / 616988883, - 1453857185.0 / 822651844},
+			{0, 40617522.0 / 29380423, - 110615467.0 / 29380423, 69997945.0 / 29380423}});
+
+	private final double[][] a, dense;
+	private final double[] b, e;
+	private final int order, solutionStages;
+	private final boolean fsal;
+
+	public Tableau(int order, double[][] a, double[] b, double[] bHat, double[][] dense) {
+
+		if (a.length != b.length || (bHat != null && bHat.length != b.length) || (dense != null && dense.length != b.length))
+			throw new RuntimeException("Tableau rows and weights must have the same number of stages");
+		for (int i = 0; i < a.length; i++)
+			if (a[i].length > i)
+				throw new RuntimeException("Tableau must be explicit: row " + i + " has more than " + i + " coefficients");
+
+		this.order = order;
+		this.a = a;
+		this.b = b;
+		this.dense = dense;
+
+		if (bHat != null) {
+			e = new double[b.length];
+			for (int i = 0; i < b.length; i++)
+				e[i] = bHat[i] - b[i];
+		} else
+			e = null;
+
+		int last = 0;
+		for (int i = 0; i < b.length; i++)
+			if (b[i] != 0) last = i;
+		solutionStages = last + 1;
+
+		double[] lastRow = a[a.length - 1];
+		boolean same = a.length > 1 && b[b.length - 1] == 0 && lastRow.length == b.length - 1;
+		for (int i = 0; same && i < lastRow.length; i++)
+			same = lastRow[i] == b[i];
+		fsal = same;
+	}
+	public Tableau(int order, double[][] a, double[] b, double[] bHat) {this(order, a, b, bHat, null);}
+	public Tableau(int order, double[][] a, double[] b) {this(order, a, b, null, null);}
+
+	public double[] getRow(int stage) {return a[stage];}
+	public double[] getWeights() {return b;}
+	public double[] getErrorWeights() {return e;}
+	public double[] getDenseWeights(double theta, double[] out) {
+		for (int i = 0; i < dense.length; i++) {
+			double w = 0;
+			for (int p = dense[i].length - 1; p >= 0; p--) w = (w + dense[i][p]) * theta;
+			out[i] = w;
+		}
+		return out;
+	}
+	public int getOrder() {return order;}
+	public int getStages() {return b.length;}
+	public int getSolutionStages() {return solutionStages;}
+	public boolean hasError() {return e != null;}
+	public boolean hasDenseOutput() {return dense != null;}
+	public boolean isFsal() {return fsal;}
+}
@@ -0,0 +1,195 @@
+package spdsim;
+
+import java.util.function.DoubleUnaryOperator;
+
+import processing.core.PVector;
+
+public abstract class TabulatedInteraction extends Interaction {
+
+	private static final int MAX_POINTS = 1 << 20;
+
+	private float inner, outer, tolerance;
+	private int points;
+	private double error;
+	private volatile boolean fallback;
+	private volatile Table table;
+
+	public TabulatedInteraction(String id, float inner, float outer) {
+
+		super(id);
+		this.inner = inner;
+		this.outer = outer;
+		tolerance = 1e-4f;
+		points = 1024;
+	}
+	public TabulatedInteraction(String id, float outer) {this(id, outer / 100, outer);}
+
+	public static TabulatedInteraction of(String id, float outer, DoubleUnaryOperator force, DoubleUnaryOperator potential) {
+		return new TabulatedInteraction(id, outer) {
+			@Override
+			public double radialForce(double r) {return force.applyAsDouble(r);}
+			@Override
+			public double radialPotential(double r) {return potential.applyAsDouble(r);}
+		};
+	}
+
+	public abstract double radialForce(double r);
+	public abstract double radialPotential(double r);
+
+	private double factor(double s) {double r = Math.sqrt(s); return radialForce(r) / r;}
+	private double energy(double s) {return radialPotential(Math.sqrt(s));}
+
+	public synchronized TabulatedInteraction build() {
+
+		double outer = getCutoff() > 0 ? Math.min(this.outer, getCutoff()) : this.outer;
+		if (inner <= 0 || outer <= inner) throw new RuntimeException("Invalid table range: " + inner + " to " + outer);
+
+		for (int n = points; ; n *= 2) {
+			Table t = new Table((double) inner * inner, outer * outer, n);
+			double[] f = new double[n + 1], df = new double[n + 1], u = new double[n + 1], du = new double[n + 1];
+			for (int k = 0; k <= n; k++) {
+				double s = t.start + k * t.step;
+				f[k] = factor(s);
+				u[k] = energy(s);
+			}
+			slopes(t, f, df, true);
+			slopes(t, u, du, false);
+			for (int k = 0; k < n; k++) {
+				t.hermite(8 * k, f[k], f[k + 1], df[k], df[k + 1]);
+				t.hermite(8 * k + 4, u[k], u[k + 1], du[k], du[k + 1]);
+			}
+			error = check(t, n);
+			if (error <= tolerance) {
+				points = n;
+				fallback = false;
+				table = t;
+				return this;
+			}
+			if (2 * n > MAX_POINTS) throw new RuntimeException("Table for " + getId() + " cannot reach tolerance " + tolerance + " (error " + error + ")");
+		}
+	}
+	private void slopes(Table t, double[] v, double[] out, boolean force) {
+
+		int n = v.length - 1;
+		double d = 1e-3 * t.step, end = t.start + n * t.step;
+		out[0] = (- 3 * v[0] + 4 * sample(t.start + d, force) - sample(t.start + 2 * d, force)) / (2 * d);
+		out[n] = (3 * v[n] - 4 * sample(end - d, force) + sample(end - 2 * d, force)) / (2 * d);
+		for (int k = 1; k < n; k++) {
+			double s = t.start + k * t.step;
+			out[k] = (sample(s + d, force) - sample(s - d, force)) / (2 * d);
+		}
+	}
+	private double sample(double s, boolean force) {return force ? factor(s) : energy(s);}
+	private double check(Table table, int n) {
+
+		double scaleF = 0, scaleU = 0;
+		for (int k = 0; k < n; k++) {
+			scaleF += Math.abs(table.data[8 * k]) / n;
+			scaleU += Math.abs(table.data[8 * k + 4]) / n;
+		}
+		double worst = 0;
+		for (int k = 0; k < n; k++)
+			for (int m = 0; m < 8; m++) {
+				double s = table.start + (k + (m + 0.5) / 8) * table.step;
+				worst = Math.max(worst, Math.abs(table.interpolate(s, 0) - factor(s)) / (Math.abs(factor(s)) + scaleF));
+				worst = Math.max(worst, Math.abs(table.interpolate(s, 4) - energy(s)) / (Math.abs(energy(s)) + scaleU));
+			}
+		return worst;
+	}
+	private Table table() {
+
+		Table t = table;
+		if (t != null) return t;
+		synchronized (this) {
+			if (table == null) build();
+			return table;
+		}
+	}
+	/** Interpolated F(r)/r at s = r^2. Outside the table the analytic form is evaluated instead, and hasFallenBack() turns true. */
+	public double forceFactor(double s) {Table t = table(); if (t.contains(s)) return t.interpolate(s, 0); if (!fallback) fallback = true; return factor(s);}
+	public double potential(double s) {Table t = table(); if (t.contains(s)) return t.interpolate(s, 4); if (!fallback) fallback = true; return energy(s);}
+
+	@Override
+	public Interaction prepare() {
+
+		table();
+		return super.prepare();
+	}
+	@Override
+	public Interaction setCutoff(float rc, float skin) {table = null; return super.setCutoff(rc, skin);}
+
+	@Override
+	public PVector acceleration(Particle p1, Particle p2) {
+
+		PVector d = PVector.sub(p2.getPos(), p1.getPos());
+		return d.mult((float) (forceFactor(d.magSq()) / p2.getMass()));
+	}
+	@Override
+	public PVectorD accelerationD(Particle p1, Particle p2) {
+
+		if (!p1.isDoublePrecision() || !p2.isDoublePrecision()) return super.accelerationD(p1, p2);
+		PVectorD d = PVectorD.sub(p2.getPosD(), p1.getPosD());
+		return d.mult(forceFactor(d.magSq()) / p2.getMass());
+	}
+	@Override
+	public float potentialEnergy(Particle p1, Particle p2) {return (float) potential(PVector.sub(p2.getPos(), p1.getPos()).magSq());}
+
+	@Override
+	public boolean isSymmetric() {return true;}
+	@Override
+	public PVector force(Particle p1, Particle p2) {
+
+		PVector d = PVector.sub(p2.getPos(), p1.getPos());
+		return d.mult((float) forceFactor(d.magSq()));
+	}
+	@Override
+	public PVectorD forceD(Particle p1, Particle p2) {
+
+		if (!p1.isDoublePrecision() || !p2.isDoublePrecision()) return super.forceD(p1, p2);
+		PVectorD d = PVectorD.sub(p2.getPosD(), p1.getPosD());
+		return d.mult(forceFactor(d.magSq()));
+	}
+
+	public float getInner() {return inner;}
+	public float getOuter() {return outer;}
+	public float getTolerance() {return tolerance;}
+	public int getPoints() {return points;}
+	public double getError() {table(); return error;}
+	public boolean hasFallenBack() {return fallback;}
+
+	public TabulatedInteraction setRange(float inner, float outer) {this.inner = inner; this.outer = outer; table = null; return this;}
+	/** Largest interpolation error of the force factor and the potential, relative to |value| plus the mean magnitude of the table, sampled at eight points per interval. */
+	public TabulatedInteraction setTolerance(float t) {tolerance = t; table = null; return this;}
+	public TabulatedInteraction setPoints(int n) {points = n; table = null; return this;}
+
+	private static final class Table {
+
+		final double start, step, inv;
+		final double[] data;
+
+		Table(double start, double end, int n) {
+
+			this.start = start;
+			step = (end - start) / n;
+			inv = 1 / step;
+			data = new double[8 * n];
+		}
+		void hermite(int o, double f0, double f1, double d0, double d1) {
+
+			data[o] = f0;
+			data[o + 1] = step * d0;
+			data[o + 2] = 3 * (f1 - f0) - step * (2 * d0 + d1);
+			data[o + 3] = 2 * (f0 - f1) + step * (d0 + d1);
+		}
+		boolean contains(double s) {return s >= start && s <= start + step * (data.length / 8);}
+		double interpolate(double s, int part) {
+
+			double u = (s - start) * inv;
+			int k = (int) u;
+			if (k >= data.length / 8) k = data.length / 8 - 1;
+			double t = u - k;
+			int o = 8 * k + part;
+			return data[o] + t * (data[o + 1] + t * (data[o + 2] + t * data[o + 3]));
+		}
+	}
+}
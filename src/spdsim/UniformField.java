@@ -0,0 +1,49 @@
+package spdsim;
+
+import java.util.List;
+
+import processing.core.PVector;
+
+public class UniformField extends ExternalForce {
+
+	private PVector field;
+
+	public UniformField(String id, PVector field) {
+
+		super(id);
+		this.field = field.copy();
+	}
+	public UniformField(String id, List<Particle> pts, PVector field) {
+
+		this(id, field);
+		Environment.implement(pts, this);
+	}
+	public UniformField(PVector field) {this("", field);}
+
+	public static UniformField gravity(float g) {return new UniformField("gravity", new PVector(0, - g, 0));}
+
+	@Override
+	public PVector acceleration(Particle p) {return field.copy();}
+	@Override
+	public PVectorD accelerationD(Particle p) {return new PVectorD(field.x, field.y, field.z);}
+	@Override
+	public float potentialEnergy(Particle p) {return - p.getMass() * field.dot(p.getPos());}
+
+	@Override
+	public boolean isUniform() {return true;}
+	@Override
+	public void accelerations(ParticleBatch batch, int from, int to, float[] out) {
+
+		float ax = field.x, ay = field.y, az = field.z;
+		for (int i = from; i < to; i++) {
+			out[3 * i] += ax;
+			out[3 * i + 1] += ay;
+			out[3 * i + 2] += az;
+		}
+	}
+
+	public PVector getField() {return field.copy();}
+
+	public UniformField setField(PVector f) {field.set(f); return this;}
+	public UniformField setField(float x, float y, float z) {field.set(x, y, z); return this;}
+}
@@ -0,0 +1,28 @@
+package spdsim;
+
+public class AllTests {
+
+	public static void main(String[] args) {
+
+		run("IntegratorTest", IntegratorTest::run);
+		run("SolverTest", SolverTest::run);
+		run("TabulatedInteractionTest", TabulatedInteractionTest::run);
+		run("ForceLawTest", ForceLawTest::run);
+		run("NeighbourListTest", NeighbourListTest::run);
+
+		System.out.println(Check.getChecks() + " checks, " + Check.getFailures() + " failures");
+		if (Check.getFailures() > 0) System.exit(1);
+	}
+	private static void run(String name, Runnable test) {
+
+		int before = Check.getFailures();
+		long start = System.nanoTime();
+		try {
+			test.run();
+		} catch (RuntimeException e) {
+			Check.that(false, name + " threw " + e);
+			e.printStackTrace(System.out);
+		}
+		System.out.printf("%-28s %s (%d ms)%n", name, Check.getFailures() == before ? "ok" : "FAILED", (System.nanoTime() - start) / 1000000);
+	}
+}
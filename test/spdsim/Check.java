@@ -0,0 +1,24 @@
+package spdsim;
+
+/** Minimal assertions for the self-checking tests, which run without any test framework on the classpath. */
+final class Check {
+
+	private static int checks, failures;
+
+	private Check() {}
+
+	static void that(boolean condition, String what) {
+
+		checks++;
+		if (condition) return;
+		failures++;
+		System.out.println("  FAIL " + what);
+	}
+	static void close(double expected, double actual, double tolerance, String what) {
+		that(Math.abs(expected - actual) <= tolerance, what + ": expected " + expected + " but was " + actual + " (tolerance " + tolerance + ")");
+	}
+	static void relative(double expected, double actual, double tolerance, String what) {close(expected, actual, tolerance * Math.abs(expected), what);}
+
+	static int getChecks() {return checks;}
+	static int getFailures() {return failures;}
+}
@@ -0,0 +1,39 @@
+package spdsim;
+
+import java.util.HashMap;
+import java.util.Map;
+
+final class ForceLawTest {
+
+	private ForceLawTest() {}
+
+	static void run() {
+
+		Map<String, Double> parameters = new HashMap<String, Double>();
+		parameters.put("k", 2.5);
+		ForceLaw law = ForceLaw.compile("-k*m1*m2*r^-1.5 + min(q1, q2) - max(r, 2)^2 + sqrt(r)*exp(-r) + pow(r, 0.3) - -r", "k/r^3 + r^0.5 - cbrt(r) + abs(q1) + log(r) + tanh(r) + 2^r", parameters);
+		for (double r = 0.5; r < 4; r += 0.37) {
+			double m1 = 2, m2 = 3, q1 = - 1, q2 = 0.5, k = 2.5;
+			double force = - k * m1 * m2 * Math.pow(r, - 1.5) + Math.min(q1, q2) - Math.pow(Math.max(r, 2), 2) + Math.sqrt(r) * Math.exp(- r) + Math.pow(r, 0.3) + r;
+			double energy = k / Math.pow(r, 3) + Math.sqrt(r) - Math.cbrt(r) + Math.abs(q1) + Math.log(r) + Math.tanh(r) + Math.pow(2, r);
+			Check.relative(force, law.force(r, m1, m2, q1, q2), 1e-12, "compiled force at r = " + r);
+			Check.relative(energy, law.potential(r, m1, m2, q1, q2), 1e-12, "compiled potential at r = " + r);
+		}
+
+		boolean rejected = false;
+		try {
+			ForceLaw.compile("r +* 2", "0");
+		} catch (RuntimeException e) {
+			rejected = true;
+		}
+		Check.that(rejected, "a malformed expression is rejected");
+
+		ExpressionInteraction gravity = new ExpressionInteraction("g", "-m1*m2/r^2", "-m1*m2/r");
+		Particle a = new Particle(null, 0, 0, 0, 0, 0, 0, 1, 0, 1), b = new Particle(null, 3, 4, 0, 0, 0, 0, 1, 0, 1);
+		a.setMass(2);
+		Check.close(- 2.0 / 25 * 3 / 5, gravity.acceleration(a, b).x, 1e-6, "expression acceleration along x");
+		Check.close(- 2.0 / 25 * 4 / 5, gravity.acceleration(a, b).y, 1e-6, "expression acceleration along y");
+		Particle c = new Particle(null, 0, 0, 0, 0, 0, 0, 1, 0, 1);
+		Check.that(gravity.acceleration(a, c).mag() == 0, "coincident particles get no acceleration");
+	}
+}
@@ -0,0 +1,113 @@
+package spdsim;
+
+import java.util.Random;
+
+import processing.core.PVector;
+
+final class IntegratorTest {
+
+	private IntegratorTest() {}
+
+	static void run() {
+
+		order(Integrator.METHOD.EULER, 1);
+		order(Integrator.METHOD.RK4, 4);
+		order(Integrator.METHOD.RK6, 6);
+		order(Integrator.METHOD.RKF45, 5);
+		order(Integrator.METHOD.CK45, 5);
+		order(Integrator.METHOD.DOPRI45, 5);
+		order(Integrator.METHOD.VERLET, 2);
+		order(Integrator.METHOD.LEAPFROG, 2);
+		order(Integrator.METHOD.YOSHIDA4, 4);
+		reversible(Integrator.METHOD.VERLET);
+		reversible(Integrator.METHOD.YOSHIDA4);
+		threads(0);
+		threads(40);
+		kernel();
+	}
+
+	/** Unit harmonic oscillator in double precision: x(t) = cos t, v(t) = -sin t. */
+	private static class Harmonic extends ExternalForce {
+		@Override
+		public PVector acceleration(Particle p) {return PVector.mult(p.getPos(), - 1);}
+		@Override
+		public PVectorD accelerationD(Particle p) {return PVectorD.mult(p.getPosD(), - 1);}
+	}
+	private static Environment oscillator(Integrator.METHOD method, float dt) {
+
+		Environment env = new Environment(10, 10, 10);
+		env.setCollisions(false).setConstrained(false).setDim(Environment.DIMENSION.THREE);
+		env.add(new Particle(null, 1, 0, 0, 0, 0, 0, 1, 0, 0.1f));
+		env.setPrecision(Environment.PRECISION.DOUBLE);
+		Harmonic h = new Harmonic();
+		env.add(h).implement(h);
+		env.getIntegrator().setMethod(method).setDt(dt);
+		return env;
+	}
+	private static double error(Integrator.METHOD method, float dt, double t) {
+
+		Environment env = oscillator(method, dt);
+		env.run((int) Math.round(t / dt));
+		Particle p = env.getFirst();
+		return Math.hypot(p.getPosD().x - Math.cos(t), p.getVelD().x + Math.sin(t));
+	}
+	private static void order(Integrator.METHOD method, int expected) {
+
+		double coarse = error(method, 0.25f, 4), fine = error(method, 0.125f, 4);
+		double order = Math.log(coarse / fine) / Math.log(2);
+		Check.close(expected, order, 0.4, method + " order of convergence");
+	}
+	private static void reversible(Integrator.METHOD method) {
+
+		Environment env = oscillator(method, 0.1f);
+		for (int i = 0; i < 200; i++) env.getIntegrator().forward();
+		for (int i = 0; i < 200; i++) env.getIntegrator().backward();
+		Particle p = env.getFirst();
+		Check.close(1, p.getPosD().x, 1e-12, method + " returns to its start");
+		Check.close(0, p.getVelD().x, 1e-12, method + " returns to its start velocity");
+	}
+
+	private static Environment cluster(int threads, float cutoff, boolean compiled) {
+
+		Environment env = new Environment(1000, 1000, 1000);
+		env.setCollisions(false).setConstrained(false).setDim(Environment.DIMENSION.THREE);
+		Random r = new Random(7);
+		for (int i = 0; i < 400; i++)
+			env.add(new Particle(null, (float) r.nextGaussian() * 50, (float) r.nextGaussian() * 50, (float) r.nextGaussian() * 50, 0, 0, 0, 1, 0, 1));
+		InverseSquare g = InverseSquare.gravity(1);
+		g.setSoftening(1);
+		if (cutoff > 0) g.setCutoff(cutoff);
+		env.add(g).implement(g);
+		UniformField down = UniformField.gravity(0.1f);
+		env.add(down).implement(down);
+		env.setThreads(threads);
+		env.getIntegrator().setMethod(Integrator.METHOD.RK4).setEvaluation(Integrator.EVALUATION.SYNCHRONOUS).setDt(0.05f).setCompiled(compiled);
+		return env;
+	}
+	private static double deviation(Environment a, Environment b) {
+
+		double dev = 0;
+		for (int i = 0; i < a.getParticles().size(); i++)
+			dev = Math.max(dev, a.getParticles().get(i).getPos().dist(b.getParticles().get(i).getPos()));
+		return dev;
+	}
+	private static void threads(float cutoff) {
+
+		Environment serial = cluster(1, cutoff, true), parallel = cluster(4, cutoff, true);
+		serial.run(10);
+		parallel.run(10);
+		parallel.releasePool();
+		if (cutoff == 0)
+			Check.that(deviation(serial, parallel) == 0, "serial and ForkJoin runs are identical: " + deviation(serial, parallel));
+		else
+			Check.close(0, deviation(serial, parallel), 1e-4, "serial and ForkJoin runs agree with a cutoff");
+	}
+	private static void kernel() {
+
+		Environment plain = cluster(1, 40, false), compiled = cluster(1, 40, true);
+		plain.run(10);
+		compiled.run(10);
+		Check.that(compiled.getIntegrator().getKernel(Particle.ALL) != null, "the compiled run uses a kernel");
+		Check.close(0, deviation(plain, compiled), 1e-4, "kernel and per-particle path agree");
+	}
+}
@@ -0,0 +1,115 @@
+package spdsim;
+
+import java.util.Random;
+
+import processing.core.PVector;
+
+final class NeighbourListTest {
+
+	private NeighbourListTest() {}
+
+	static void run() {
+
+		Environment env = gas();
+		Soft soft = (Soft) env.getInteractions().get(0);
+		soft.prepare();
+		NeighbourList list = soft.getNeighbours();
+		Check.that(list != null && list.isValid(), "a cutoff builds a neighbour list");
+		agree(soft, "neighbour list");
+
+		int builds = list.getBuilds();
+		for (Particle p : env.getParticles()) p.setPos(PVector.add(p.getPos(), new PVector(0.1f, 0, 0)));
+		soft.prepare();
+		Check.that(list.getBuilds() == builds, "moves within the skin keep the list");
+		agree(soft, "kept neighbour list");
+		for (Particle p : env.getParticles()) p.setPos(PVector.add(p.getPos(), new PVector(0, 3, 0)));
+		env.getFirst().setPos(PVector.add(env.getFirst().getPos(), new PVector(0, 5, 0)));
+		soft.prepare();
+		Check.that(list.getBuilds() > builds, "a move beyond half the skin rebuilds the list");
+		agree(soft, "rebuilt neighbour list");
+
+		excluded();
+	}
+
+	/** Short-range soft repulsion, symmetric so that evaluate() scatters pair forces. */
+	private static class Soft extends Interaction {
+		@Override
+		public PVector acceleration(Particle p1, Particle p2) {
+
+			PVector d = PVector.sub(p2.getPos(), p1.getPos());
+			float r2 = d.magSq() + 1;
+			return d.mult(p1.getMass() / (r2 * r2 * p2.getMass()));
+		}
+		@Override
+		public boolean isSymmetric() {return true;}
+		@Override
+		public PVector force(Particle p1, Particle p2) {return acceleration(p1, p2).mult(p2.getMass());}
+	}
+	private static Environment gas() {
+
+		Environment env = new Environment(1000, 1000, 1000);
+		env.setCollisions(false).setConstrained(false).setDim(Environment.DIMENSION.THREE);
+		Random r = new Random(11);
+		for (int i = 0; i < 600; i++)
+			env.add(new Particle(null, 40 * r.nextFloat(), 40 * r.nextFloat(), 40 * r.nextFloat(), 0, 0, 0, 1, 0, 0.5f).setMass(1 + r.nextFloat()));
+		Soft soft = new Soft();
+		soft.setCutoff(6, 2);
+		env.add(soft).implement(soft);
+		env.getIntegrator().setMethod(Integrator.METHOD.EULER).setDt(0.01f);
+		return env;
+	}
+	private static double[] direct(Interaction inter, Particle p) {
+
+		double[] sum = new double[3];
+		for (Particle o : inter.getParticles())
+			if (o != p && !inter.excludes(o, p) && inter.within(o, p)) {
+				PVector a = inter.acceleration(o, p);
+				sum[0] += a.x; sum[1] += a.y; sum[2] += a.z;
+			}
+		return sum;
+	}
+	private static void agree(Interaction inter, String what) {
+
+		double worst = 0;
+		double[] out = new double[3];
+		for (Particle p : inter.getParticles()) {
+			double[] exact = direct(inter, p);
+			Check.that(inter.accumulate(p, out), what + " serves every particle");
+			for (int k = 0; k < 3; k++) worst = Math.max(worst, Math.abs(out[k] - exact[k]));
+		}
+		Check.close(0, worst, 1e-6, what + " matches the direct sum");
+	}
+
+	/** Three bodies of inactive particles: a body never acts on itself by default, and bodies a and b are also excluded from each other. */
+	private static void excluded() {
+
+		Environment env = new Environment(1000, 1000, 1000);
+		env.setCollisions(false).setConstrained(false).setDim(Environment.DIMENSION.THREE);
+		Random r = new Random(5);
+		String[] labels = {"a", "b", "c"};
+		for (String label : labels)
+			for (int i = 0; i < 50; i++)
+				env.add(new Particle(null, 20 * r.nextFloat(), 20 * r.nextFloat(), 20 * r.nextFloat(), 0, 0, 0, 1, 0, 0.5f).setActive(false).setActiveLabel(label));
+		Soft soft = new Soft();
+		soft.setExcluded("a", "b", true).setExcluded("c", "c", false);
+		env.add(soft).implement(soft);
+		env.loadStore();
+
+		Particle a = env.getParticles().get(0), b = env.getParticles().get(50), c = env.getParticles().get(100);
+		Check.that(soft.excludes(a, env.getParticles().get(1)), "a body excludes itself");
+		Check.that(soft.excludes(a, b) && soft.excludes(b, a), "an excluded pair works both ways");
+		Check.that(!soft.excludes(a, c), "other bodies interact");
+		Check.that(!soft.excludes(c, env.getParticles().get(101)), "a body can be allowed to act on itself");
+
+		ParticleStore store = env.getStore();
+		soft.evaluate(store, null, 1);
+		double[] scattered = soft.getScattered(store);
+		Check.that(scattered != null, "a symmetric interaction scatters its pairs");
+		double worst = 0;
+		for (Particle p : env.getParticles()) {
+			double[] exact = direct(soft, p);
+			for (int k = 0; k < 3; k++) worst = Math.max(worst, Math.abs(scattered[3 * p.getIndex() + k] - exact[k]));
+		}
+		Check.close(0, worst, 1e-6, "scattered pairs honour the exclusion mask");
+	}
+}
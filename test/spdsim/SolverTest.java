@@ -0,0 +1,63 @@
+package spdsim;
+
+import java.util.Random;
+
+final class SolverTest {
+
+	private SolverTest() {}
+
+	static void run() {
+
+		Environment direct = plummer(1500);
+		double[][] exact = accelerations(direct);
+
+		Environment tree = plummer(1500);
+		solver(tree).setOpeningAngle(0.5f).setSolverType(InverseSquare.SOLVER.TREE);
+		Check.close(0, error(exact, accelerations(tree)), 5e-3, "Barnes-Hut agrees with the direct sum");
+
+		Environment fmm = plummer(1500);
+		solver(fmm).setSolverType(InverseSquare.SOLVER.FMM).setExpansionOrder(8);
+		Check.close(0, error(exact, accelerations(fmm)), 5e-4, "FMM agrees with the direct sum");
+
+		Environment pm = plummer(1500);
+		solver(pm).setSolver(new ParticleMesh(pm.getBoundaries(), 64).setShortRange(true));
+		Check.close(0, error(exact, accelerations(pm)), 2e-2, "P3M agrees with the direct sum");
+	}
+
+	/** Plummer sphere of unit masses well inside a 1000-wide box. */
+	private static Environment plummer(int n) {
+
+		Environment env = new Environment(1000, 1000, 1000);
+		env.setCollisions(false).setConstrained(false).setDim(Environment.DIMENSION.THREE);
+		Random r = new Random(3);
+		for (int i = 0; i < n; i++) {
+			double u = r.nextDouble(), radius = 50 / Math.sqrt(Math.pow(u, - 2.0 / 3) - 1);
+			if (radius > 400) {i--; continue;}
+			double ct = 2 * r.nextDouble() - 1, st = Math.sqrt(1 - ct * ct), phi = 2 * Math.PI * r.nextDouble();
+			env.add(new Particle(null, (float) (radius * st * Math.cos(phi)), (float) (radius * st * Math.sin(phi)), (float) (radius * ct), 0, 0, 0, 1, 0, 1));
+		}
+		InverseSquare g = InverseSquare.gravity(1);
+		g.setSoftening(0.5f);
+		env.add(g).implement(g);
+		return env;
+	}
+	private static InverseSquare solver(Environment env) {return (InverseSquare) env.getInteractions().get(0);}
+	private static double[][] accelerations(Environment env) {
+
+		solver(env).prepare();
+		double[][] result = new double[env.getParticles().size()][];
+		for (int i = 0; i < result.length; i++) result[i] = env.getParticles().get(i).computeDerivative(1, new double[6], 0);
+		return result;
+	}
+	/** Mean relative error of the acceleration over all particles. */
+	private static double error(double[][] exact, double[][] approx) {
+
+		double sum = 0;
+		for (int i = 0; i < exact.length; i++) {
+			double[] a = exact[i], b = approx[i];
+			double dx = a[3] - b[3], dy = a[4] - b[4], dz = a[5] - b[5];
+			sum += Math.sqrt((dx * dx + dy * dy + dz * dz) / (a[3] * a[3] + a[4] * a[4] + a[5] * a[5]));
+		}
+		return sum / exact.length;
+	}
+}
@@ -0,0 +1,28 @@
+package spdsim;
+
+final class TabulatedInteractionTest {
+
+	private TabulatedInteractionTest() {}
+
+	static void run() {
+
+		TabulatedInteraction lj = TabulatedInteraction.of("lj", 5, r -> 24 * (2 * Math.pow(r, - 13) - Math.pow(r, - 7)), r -> 4 * (Math.pow(r, - 12) - Math.pow(r, - 6)));
+		lj.setRange(0.8f, 5).setPoints(64).setTolerance(1e-5f);
+		lj.build();
+		Check.that(lj.getError() <= 1e-5, "table error " + lj.getError() + " is within its tolerance");
+
+		double s0 = (double) 0.8f * 0.8f, s1 = 25, worst = 0;
+		for (int i = 0; i <= 5000; i++) {
+			double s = s0 + (s1 - s0) * i / 5000, r = Math.sqrt(s);
+			double force = 24 * (2 * Math.pow(r, - 13) - Math.pow(r, - 7)) / r, energy = 4 * (Math.pow(r, - 12) - Math.pow(r, - 6));
+			Check.close(force, lj.forceFactor(s), 1e-4 * Math.abs(force) + 1e-9, "interpolated force at r = " + r);
+			worst = Math.max(worst, Math.abs(lj.potential(s) - energy) / (Math.abs(energy) + 1e-6));
+		}
+		Check.close(0, worst, 1e-4, "interpolated potential");
+		Check.that(!lj.hasFallenBack(), "no fallback inside the table");
+
+		double inside = 0.25, r = 0.5;
+		Check.relative(24 * (2 * Math.pow(r, - 13) - Math.pow(r, - 7)) / r, lj.forceFactor(inside), 1e-12, "analytic force below the table");
+		Check.that(lj.hasFallenBack(), "a call below the table is reported");
+	}
+}